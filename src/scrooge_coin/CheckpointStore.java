@@ -0,0 +1,403 @@
+package scrooge_coin;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Stores UTXOPool snapshots as checksummed binary files named after their epoch sequence number.
+ * <p>
+ * File layout (big endian): magic, version, epoch, the distinct addresses (key algorithm and X.509
+ * encoding), the UTXOs (transaction hash, output index, value and address number) and finally the
+ * CRC32 of everything before it.
+ */
+public class CheckpointStore {
+
+    private static final int MAGIC = 0x53434b50;
+    private static final int VERSION = 1;
+    private static final String PREFIX = "epoch-";
+    private static final String SUFFIX = ".ckpt";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File directory;
+
+    private final ExecutorService executor;
+
+    /**
+     * Creates a store keeping its checkpoint files in {@code directory}, which is created if needed
+     */
+    public CheckpointStore(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "checkpoint-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Writes a checkpoint of {@code utxoPool} at {@code epoch}, so that the caller may keep updating
+     * the pool once this returns.
+     * <p>
+     * A {@link TieredUTXOPool} is flushed and its cold store snapshotted with
+     * {@link ColdUTXOStore#snapshot(File)}, which costs one file operation per segment; the
+     * segment records are then copied into the checkpoint in the background. Any other pool is
+     * copied on the caller's thread, which takes time and memory proportional to its size, and
+     * only the file is written in the background. {@link TxHandler#checkpoint(CheckpointStore)}
+     * avoids that copy.
+     *
+     * @return the future checkpoint file
+     */
+    public Future<File> save(UTXOPool utxoPool, final long epoch) {
+        if (utxoPool instanceof TieredUTXOPool) {
+            utxoPool.flush();
+            final ColdUTXOStore.Snapshot snapshot;
+            try {
+                File snapshotDirectory = Files.createTempDirectory(directory.toPath(), SNAPSHOT_PREFIX).toFile();
+                snapshot = ((TieredUTXOPool) utxoPool).getColdStore().snapshot(snapshotDirectory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return executor.submit(new Callable<File>() {
+                public File call() throws IOException {
+                    try {
+                        return write(epoch, new SnapshotBody(snapshot));
+                    } finally {
+                        snapshot.delete();
+                    }
+                }
+            });
+        }
+
+        return saveUnchanged(new UTXOPool(utxoPool), epoch);
+    }
+
+    /**
+     * Writes a checkpoint of {@code utxoPool} at {@code epoch} in the background without copying
+     * it. The pool must not change until the returned future is done.
+     *
+     * @return the future checkpoint file
+     */
+    public Future<File> saveUnchanged(final UTXOPool utxoPool, final long epoch) {
+        return executor.submit(new Callable<File>() {
+            public File call() throws IOException {
+                return write(utxoPool, epoch);
+            }
+        });
+    }
+
+    /**
+     * Writes a checkpoint of {@code utxoPool} at {@code epoch} to a temporary file which is then
+     * atomically renamed, so readers never see a partial checkpoint.
+     *
+     * @return the checkpoint file
+     */
+    public File write(UTXOPool utxoPool, long epoch) throws IOException {
+        return write(epoch, new PoolBody(utxoPool));
+    }
+
+    private File write(long epoch, Body body) throws IOException {
+        File file = new File(directory, PREFIX + String.format("%020d", epoch) + SUFFIX);
+        File tmpFile = File.createTempFile(PREFIX, ".tmp", directory);
+        try {
+            writeTo(tmpFile, epoch, body);
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmpFile.delete();
+        }
+        return file;
+    }
+
+    /**
+     * Reads the checkpoint with the highest epoch which can be read and passes its checksum. The
+     * reasons the newer checkpoint files could not be read are returned with it, see
+     * {@link Checkpoint#getSkipped()}.
+     *
+     * @return the checkpoint, or null if there is no checkpoint file
+     * @throws IOException if no checkpoint file can be read, with the failure of each file added as
+     *                     a suppressed exception
+     */
+    public Checkpoint loadLatest() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return null;
+        }
+        List<File> checkpoints = new ArrayList<File>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                checkpoints.add(file);
+            }
+        }
+        // Zero padded epochs sort like numbers
+        File[] sorted = checkpoints.toArray(new File[checkpoints.size()]);
+        Arrays.sort(sorted);
+        if (sorted.length == 0) {
+            return null;
+        }
+        List<IOException> skipped = new ArrayList<IOException>();
+        for (int index = sorted.length - 1; index >= 0; index--) {
+            try {
+                Checkpoint checkpoint = read(sorted[index]);
+                return new Checkpoint(checkpoint.getUTXOPool(), checkpoint.getEpoch(), skipped);
+            } catch (IOException e) {
+                skipped.add(e);
+            }
+        }
+        IOException e = new IOException("No readable checkpoint in " + directory);
+        for (IOException cause : skipped) {
+            e.addSuppressed(cause);
+        }
+        throw e;
+    }
+
+    /**
+     * Stops the background writer once the pending checkpoints are written
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static void writeTo(File file, long epoch, Body body) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(file);
+        try {
+            CheckedOutputStream checkedOut = new CheckedOutputStream(fileOut, new CRC32());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checkedOut, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(epoch);
+            body.writeTo(out);
+            out.flush();
+
+            // The checksum itself is written past the checked stream
+            DataOutputStream trailer = new DataOutputStream(fileOut);
+            trailer.writeLong(checkedOut.getChecksum().getValue());
+            trailer.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+    }
+
+    /**
+     * Reads the checkpoint {@code file} with a single sequential read, after verifying its checksum
+     *
+     * @throws IOException if the file cannot be read, is corrupt or has an unknown format
+     */
+    public static Checkpoint read(File file) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (data.length < 8) {
+            throw new IOException("Truncated checkpoint " + file);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 8);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (buffer.getLong(data.length - 8) != crc.getValue()) {
+            throw new IOException("Checksum mismatch in checkpoint " + file);
+        }
+        buffer.limit(data.length - 8);
+
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unknown checkpoint format " + file);
+            }
+            long epoch = buffer.getLong();
+
+            PublicKey[] addresses = new PublicKey[buffer.getInt()];
+            Map<String, KeyFactory> keyFactories = new HashMap<String, KeyFactory>();
+            for (int index = 0; index < addresses.length; index++) {
+                byte[] algorithm = new byte[buffer.getShort() & 0xffff];
+                buffer.get(algorithm);
+                byte[] encoded = new byte[buffer.getInt()];
+                buffer.get(encoded);
+
+                String name = new String(algorithm, StandardCharsets.UTF_8);
+                KeyFactory keyFactory = keyFactories.get(name);
+                if (keyFactory == null) {
+                    keyFactory = KeyFactory.getInstance(name);
+                    keyFactories.put(name, keyFactory);
+                }
+                addresses[index] = keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+            }
+
+            // Outputs are inner objects of a Transaction, so they are created through a holder
+            Transaction holder = new Transaction();
+            UTXOPool utxoPool = new UTXOPool();
+            int count = buffer.getInt();
+            for (int index = 0; index < count; index++) {
+                byte[] txHash = new byte[buffer.getShort() & 0xffff];
+                buffer.get(txHash);
+                int outputIndex = buffer.getInt();
+                double value = buffer.getDouble();
+                PublicKey address = addresses[buffer.getInt()];
+                utxoPool.addUTXO(new UTXO(txHash, outputIndex), holder.new Output(value, address));
+            }
+            return new Checkpoint(utxoPool, epoch);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt checkpoint " + file, e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot decode address in checkpoint " + file, e);
+        }
+    }
+
+    /**
+     * Writes the addresses and UTXOs of a checkpoint
+     */
+    private interface Body {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private static class PoolBody implements Body {
+        UTXOPool utxoPool;
+
+        PoolBody(UTXOPool utxoPool) {
+            this.utxoPool = utxoPool;
+        }
+
+        public void writeTo(DataOutputStream out) throws IOException {
+            ArrayList<UTXO> allUTXO = utxoPool.getAllUTXO();
+            Map<PublicKey, Integer> addressIds = new HashMap<PublicKey, Integer>();
+            List<PublicKey> addresses = new ArrayList<PublicKey>();
+            for (UTXO utxo : allUTXO) {
+                PublicKey address = utxoPool.getTxOutput(utxo).address;
+                if (!addressIds.containsKey(address)) {
+                    addressIds.put(address, addresses.size());
+                    addresses.add(address);
+                }
+            }
+
+            out.writeInt(addresses.size());
+            for (PublicKey address : addresses) {
+                byte[] algorithm = address.getAlgorithm().getBytes(StandardCharsets.UTF_8);
+                byte[] encoded = address.getEncoded();
+                out.writeShort(algorithm.length);
+                out.write(algorithm);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+
+            out.writeInt(allUTXO.size());
+            for (UTXO utxo : allUTXO) {
+                Transaction.Output output = utxoPool.getTxOutput(utxo);
+                byte[] txHash = utxo.getTxHash();
+                out.writeShort(txHash.length);
+                out.write(txHash);
+                out.writeInt(utxo.getIndex());
+                out.writeDouble(output.value);
+                out.writeInt(addressIds.get(output.address));
+            }
+        }
+    }
+
+    /**
+     * Copies the records of a cold store snapshot, which use the checkpoint encoding, without
+     * decoding the UTXOs
+     */
+    private static class SnapshotBody implements Body {
+        ColdUTXOStore.Snapshot snapshot;
+
+        SnapshotBody(ColdUTXOStore.Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        public void writeTo(DataOutputStream out) throws IOException {
+            byte[] addressData = new byte[(int) snapshot.getAddressBytes()];
+            if (snapshot.getAddressFile() != null) {
+                DataInputStream in = new DataInputStream(new FileInputStream(snapshot.getAddressFile()));
+                try {
+                    in.readFully(addressData);
+                } finally {
+                    in.close();
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(addressData);
+            int addressCount = 0;
+            try {
+                while (buffer.hasRemaining()) {
+                    buffer.position(buffer.position() + 2 + (buffer.getShort(buffer.position()) & 0xffff));
+                    buffer.position(buffer.position() + 4 + buffer.getInt(buffer.position()));
+                    addressCount++;
+                }
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IOException("Corrupt address file " + snapshot.getAddressFile(), e);
+            }
+            out.writeInt(addressCount);
+            out.write(addressData);
+
+            out.writeInt(snapshot.countUTXOs());
+            snapshot.writeUTXOs(out);
+        }
+    }
+
+    public static class Checkpoint {
+
+        private final UTXOPool utxoPool;
+
+        private final long epoch;
+
+        private final List<IOException> skipped;
+
+        public Checkpoint(UTXOPool utxoPool, long epoch) {
+            this(utxoPool, epoch, new ArrayList<IOException>());
+        }
+
+        public Checkpoint(UTXOPool utxoPool, long epoch, List<IOException> skipped) {
+            this.utxoPool = utxoPool;
+            this.epoch = epoch;
+            this.skipped = skipped;
+        }
+
+        /**
+         * @return the restored pool
+         */
+        public UTXOPool getUTXOPool() {
+            return utxoPool;
+        }
+
+        /**
+         * @return the number of epochs handled before the checkpoint was taken
+         */
+        public long getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * @return why each newer checkpoint file was skipped by {@link CheckpointStore#loadLatest()}, newest first;
+         * empty if this is the newest one
+         */
+        public List<IOException> getSkipped() {
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,742 @@
+package scrooge_coin;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Compact on-disk UTXO store used as the cold tier of {@link TieredUTXOPool}. UTXOs are spread
+ * over a fixed number of segment files by hash. Each segment is an append-only log of records
+ * adding or removing a UTXO, so a batch of changes only appends to the segments it touches and
+ * costs time and memory proportional to the batch, not to the store. Once a segment holds more
+ * dead records (removed or replaced UTXOs and removals) than live ones it is compacted, i.e.
+ * rewritten with its live records only, which keeps it below about twice its live size at an
+ * amortized constant cost per change.
+ * <p>
+ * For every segment the store keeps an index in memory, loaded on first use: an open-addressing
+ * table of the hash codes of its UTXOs and the file offsets of their records. A slot takes 8 bytes
+ * and a table is between a quarter and a half full, so the index costs 16 to 32 bytes of heap per
+ * stored UTXO. A lookup of a UTXO which is not stored is answered from the index alone; otherwise
+ * only the matching records are read, through segment files kept open, at most
+ * {@link #MAX_OPEN_SEGMENTS} at a time. Addresses are stored once each in an append-only address
+ * file and referenced by number, the same encoding as {@link CheckpointStore}.
+ * <p>
+ * Segments should be numerous enough to hold at most a few thousand UTXOs each, which bounds the
+ * cost of loading or compacting one. Call {@link #close()} once the store is no longer used.
+ */
+public class ColdUTXOStore {
+
+    /**
+     * Largest number of segment files kept open for lookups
+     */
+    public static final int MAX_OPEN_SEGMENTS = 64;
+
+    private static final String ADDRESS_FILE = "addresses";
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    /**
+     * First byte of a record: a record adding a UTXO is followed by the UTXO record of
+     * {@link CheckpointStore}, one removing it by the transaction hash and output index only
+     */
+    private static final byte ADDED = 1;
+    private static final byte REMOVED = 0;
+
+    private final File directory;
+
+    private final int segments;
+
+    /**
+     * Holder of the Output objects created when reading, which are inner objects of a Transaction
+     */
+    private final Transaction holder = new Transaction();
+
+    private final Map<PublicKey, Integer> addressIds = new HashMap<PublicKey, Integer>();
+
+    private final List<PublicKey> addresses = new ArrayList<PublicKey>();
+
+    /**
+     * Index of each segment, or null until the segment is first used
+     */
+    private final SegmentIndex[] indexes;
+
+    /**
+     * Length of the valid records of each segment with an index
+     */
+    private final long[] lengths;
+
+    /**
+     * Number of dead records of each segment with an index
+     */
+    private final int[] deadRecords;
+
+    /**
+     * Open segment files, in access order
+     */
+    private final LinkedHashMap<Integer, FileChannel> channels;
+
+    /**
+     * Opens the store in {@code directory}, creating it if needed. An existing store must be opened
+     * with the same number of segments it was created with.
+     */
+    public ColdUTXOStore(File directory, int segments) throws IOException {
+        this.directory = directory;
+        this.segments = segments;
+        this.indexes = new SegmentIndex[segments];
+        this.lengths = new long[segments];
+        this.deadRecords = new int[segments];
+        this.channels = new LinkedHashMap<Integer, FileChannel>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, FileChannel> eldest) {
+                if (size() > MAX_OPEN_SEGMENTS) {
+                    try {
+                        eldest.getValue().close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+        directory.mkdirs();
+        loadAddresses();
+    }
+
+    /**
+     * @return the output stored for {@code utxo}, or null
+     */
+    public Transaction.Output get(UTXO utxo) throws IOException {
+        int segment = segmentOf(utxo);
+        int slot = find(segment, utxo);
+        if (slot < 0) {
+            return null;
+        }
+        ByteBuffer record = readRecord(segment, indexes[segment].offsets[slot]);
+        //Skip the key, which find() already compared
+        record.position(2 + (record.getShort(0) & 0xffff) + 4);
+        double value = record.getDouble();
+        return holder.new Output(value, getAddress(record.getInt(), segmentFile(segment)));
+    }
+
+    /**
+     * @return false if {@code utxo} is certainly not stored, true if it may be, without reading
+     * from disk once the segment of {@code utxo} is indexed
+     */
+    public boolean mayContain(UTXO utxo) throws IOException {
+        int segment = segmentOf(utxo);
+        SegmentIndex index = index(segment);
+        int hashCode = utxo.hashCode();
+        for (int slot = index.home(hashCode); index.offsets[slot] != SegmentIndex.EMPTY; slot = index.next(slot)) {
+            if (index.hashCodes[slot] == hashCode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return all UTXOs of the store
+     */
+    public ArrayList<UTXO> getAllUTXO() throws IOException {
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
+        for (int segment = 0; segment < segments; segment++) {
+            File file = segmentFile(segment);
+            if (file.exists()) {
+                byte[] data = Files.readAllBytes(file.toPath());
+                allUTXO.addAll(replay(data, data.length, file).live.keySet());
+            }
+        }
+        return allUTXO;
+    }
+
+    /**
+     * Removes {@code deletes} and then stores {@code puts}, appending to each affected segment once
+     */
+    public void write(Collection<UTXO> deletes, Map<UTXO, Transaction.Output> puts) throws IOException {
+        Map<Integer, List<UTXO>> segmentDeletes = new HashMap<Integer, List<UTXO>>();
+        for (UTXO utxo : deletes) {
+            int segment = segmentOf(utxo);
+            List<UTXO> list = segmentDeletes.get(segment);
+            if (list == null) {
+                list = new ArrayList<UTXO>();
+                segmentDeletes.put(segment, list);
+            }
+            list.add(utxo);
+        }
+        Map<Integer, Map<UTXO, Transaction.Output>> segmentPuts = new HashMap<Integer, Map<UTXO, Transaction.Output>>();
+        for (Map.Entry<UTXO, Transaction.Output> entry : puts.entrySet()) {
+            int segment = segmentOf(entry.getKey());
+            Map<UTXO, Transaction.Output> map = segmentPuts.get(segment);
+            if (map == null) {
+                map = new HashMap<UTXO, Transaction.Output>();
+                segmentPuts.put(segment, map);
+            }
+            map.put(entry.getKey(), entry.getValue());
+            addAddress(entry.getValue().address);
+        }
+
+        TreeSet<Integer> touched = new TreeSet<Integer>(segmentDeletes.keySet());
+        touched.addAll(segmentPuts.keySet());
+        for (int segment : touched) {
+            try {
+                append(segment, segmentDeletes.get(segment), segmentPuts.get(segment));
+            } catch (IOException e) {
+                //Reload the segment from disk on next use
+                indexes[segment] = null;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Hard links the current segment files and the address file into {@code snapshotDirectory},
+     * or copies them where links are not supported. This takes one file operation per segment,
+     * whatever the number of UTXOs, and later writes to the store do not change the snapshot:
+     * segments and the address file only grow past the lengths recorded here, and compacted
+     * segments are replaced by new files. Pending changes of a {@link TieredUTXOPool} must be
+     * flushed first.
+     */
+    public Snapshot snapshot(File snapshotDirectory) throws IOException {
+        snapshotDirectory.mkdirs();
+        List<File> segmentFiles = new ArrayList<File>();
+        List<Long> segmentBytes = new ArrayList<Long>();
+        for (int segment = 0; segment < segments; segment++) {
+            File file = segmentFile(segment);
+            if (file.exists()) {
+                segmentBytes.add(file.length());
+                segmentFiles.add(link(file, snapshotDirectory));
+            }
+        }
+        File file = new File(directory, ADDRESS_FILE);
+        File addressFile = null;
+        long addressBytes = 0;
+        if (file.exists()) {
+            addressBytes = file.length();
+            addressFile = link(file, snapshotDirectory);
+        }
+        return new Snapshot(snapshotDirectory, segmentFiles, segmentBytes, addressFile, addressBytes);
+    }
+
+    /**
+     * Closes the open segment files
+     */
+    public void close() throws IOException {
+        for (FileChannel channel : channels.values()) {
+            channel.close();
+        }
+        channels.clear();
+    }
+
+    private static File link(File file, File snapshotDirectory) throws IOException {
+        File link = new File(snapshotDirectory, file.getName());
+        try {
+            Files.createLink(link.toPath(), file.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(file.toPath(), link.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return link;
+    }
+
+    private int segmentOf(UTXO utxo) {
+        return Math.floorMod(utxo.hashCode(), segments);
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%04d", segment));
+    }
+
+    private FileChannel channel(int segment) throws IOException {
+        FileChannel channel = channels.get(segment);
+        if (channel == null) {
+            channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            channels.put(segment, channel);
+        }
+        return channel;
+    }
+
+    private void closeChannel(int segment) throws IOException {
+        FileChannel channel = channels.remove(segment);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private SegmentIndex index(int segment) throws IOException {
+        if (indexes[segment] == null) {
+            load(segment);
+        }
+        return indexes[segment];
+    }
+
+    /**
+     * Indexes a segment by replaying its records, dropping a last record cut short by an
+     * interrupted write
+     */
+    private void load(int segment) throws IOException {
+        File file = segmentFile(segment);
+        SegmentIndex index = new SegmentIndex();
+        if (!file.exists()) {
+            indexes[segment] = index;
+            lengths[segment] = 0;
+            deadRecords[segment] = 0;
+            return;
+        }
+        byte[] data = Files.readAllBytes(file.toPath());
+        Replay replay = replay(data, data.length, file);
+        for (Map.Entry<UTXO, Integer> entry : replay.live.entrySet()) {
+            index.add(entry.getKey().hashCode(), entry.getValue());
+        }
+        if (replay.length < data.length) {
+            channel(segment).truncate(replay.length);
+        }
+        indexes[segment] = index;
+        lengths[segment] = replay.length;
+        deadRecords[segment] = replay.records - index.size;
+    }
+
+    /**
+     * @return the slot of {@code utxo} in the index of its segment, or -1 if it is not stored
+     */
+    private int find(int segment, UTXO utxo) throws IOException {
+        SegmentIndex index = index(segment);
+        int hashCode = utxo.hashCode();
+        for (int slot = index.home(hashCode); index.offsets[slot] != SegmentIndex.EMPTY; slot = index.next(slot)) {
+            if (index.hashCodes[slot] != hashCode) {
+                continue;
+            }
+            ByteBuffer record = readRecord(segment, index.offsets[slot]);
+            byte[] txHash = new byte[record.getShort() & 0xffff];
+            record.get(txHash);
+            if (record.getInt() == utxo.getIndex() && Arrays.equals(txHash, utxo.getTxHash())) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the record adding a UTXO at {@code offset}, positioned after its kind byte
+     */
+    private ByteBuffer readRecord(int segment, int offset) throws IOException {
+        FileChannel channel = channel(segment);
+        File file = segmentFile(segment);
+        ByteBuffer head = read(channel, offset, 3, file);
+        if (head.get() != ADDED) {
+            throw new IOException("Corrupt segment " + file);
+        }
+        int hashLength = head.getShort() & 0xffff;
+        ByteBuffer record = ByteBuffer.allocate(2 + hashLength + 16);
+        record.putShort((short) hashLength);
+        record.put(read(channel, offset + 3, hashLength + 16, file));
+        record.flip();
+        return record;
+    }
+
+    private void append(int segment, List<UTXO> removed, Map<UTXO, Transaction.Output> added)
+            throws IOException {
+        SegmentIndex index = index(segment);
+        File file = segmentFile(segment);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (removed != null) {
+            for (UTXO utxo : removed) {
+                int slot = find(segment, utxo);
+                if (slot < 0) {
+                    continue;
+                }
+                index.remove(slot);
+                out.writeByte(REMOVED);
+                writeKey(out, utxo);
+                //The removed record and the removal itself
+                deadRecords[segment] += 2;
+            }
+        }
+        if (added != null) {
+            for (Map.Entry<UTXO, Transaction.Output> entry : added.entrySet()) {
+                int slot = find(segment, entry.getKey());
+                if (slot >= 0) {
+                    index.remove(slot);
+                    deadRecords[segment]++;
+                }
+                long offset = lengths[segment] + out.size();
+                if (offset > Integer.MAX_VALUE) {
+                    throw new IOException("Segment too large " + file);
+                }
+                out.writeByte(ADDED);
+                writeKey(out, entry.getKey());
+                out.writeDouble(entry.getValue().value);
+                out.writeInt(addressIds.get(entry.getValue().address));
+                index.add(entry.getKey().hashCode(), (int) offset);
+            }
+        }
+        if (out.size() == 0) {
+            return;
+        }
+
+        FileChannel channel = channel(segment);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, lengths[segment] + buffer.position());
+        }
+        lengths[segment] += buffer.capacity();
+
+        if (deadRecords[segment] > index.size) {
+            compact(segment);
+        }
+    }
+
+    private static void writeKey(DataOutputStream out, UTXO utxo) throws IOException {
+        byte[] txHash = utxo.getTxHash();
+        out.writeShort(txHash.length);
+        out.write(txHash);
+        out.writeInt(utxo.getIndex());
+    }
+
+    /**
+     * Rewrites a segment with its live records only, in their current order
+     */
+    private void compact(int segment) throws IOException {
+        SegmentIndex index = indexes[segment];
+        File file = segmentFile(segment);
+        closeChannel(segment);
+        if (index.size == 0) {
+            file.delete();
+            lengths[segment] = 0;
+            deadRecords[segment] = 0;
+            return;
+        }
+
+        //Sort the live records by offset, keeping each one's hash code
+        long[] entries = new long[index.size];
+        int count = 0;
+        for (int slot = 0; slot < index.offsets.length; slot++) {
+            if (index.offsets[slot] != SegmentIndex.EMPTY) {
+                entries[count++] = ((long) index.offsets[slot] << 32) | (index.hashCodes[slot] & 0xffffffffL);
+            }
+        }
+        Arrays.sort(entries);
+
+        byte[] data = Files.readAllBytes(file.toPath());
+        SegmentIndex compacted = new SegmentIndex();
+        int length = 0;
+        File tmpFile = File.createTempFile(SEGMENT_PREFIX, ".tmp", directory);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                for (long entry : entries) {
+                    int offset = (int) (entry >>> 32);
+                    int recordLength = 1 + 2 + (ByteBuffer.wrap(data, offset + 1, 2).getShort() & 0xffff) + 16;
+                    compacted.add((int) entry, length);
+                    out.write(data, offset, recordLength);
+                    length += recordLength;
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt segment " + file, e);
+        } finally {
+            tmpFile.delete();
+        }
+        indexes[segment] = compacted;
+        lengths[segment] = length;
+        deadRecords[segment] = 0;
+    }
+
+    /**
+     * Replays the first {@code limit} bytes of a segment
+     */
+    private static Replay replay(byte[] data, int limit, File file) throws IOException {
+        Replay replay = new Replay();
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, Math.min(limit, data.length));
+        while (buffer.hasRemaining()) {
+            int offset = buffer.position();
+            try {
+                byte kind = buffer.get();
+                byte[] txHash = new byte[buffer.getShort() & 0xffff];
+                buffer.get(txHash);
+                UTXO utxo = new UTXO(txHash, buffer.getInt());
+                if (kind == ADDED) {
+                    buffer.position(buffer.position() + 12);
+                    replay.live.put(utxo, offset);
+                } else if (kind == REMOVED) {
+                    replay.live.remove(utxo);
+                } else {
+                    throw new IOException("Corrupt segment " + file);
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                //Only the last record can be cut short
+                break;
+            }
+            replay.records++;
+            replay.length = buffer.position();
+        }
+        return replay;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length, File file)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Corrupt segment " + file);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private PublicKey getAddress(int id, File file) throws IOException {
+        if (id < 0 || id >= addresses.size()) {
+            throw new IOException("Corrupt segment " + file);
+        }
+        return addresses.get(id);
+    }
+
+    private void addAddress(PublicKey address) throws IOException {
+        if (addressIds.containsKey(address)) {
+            return;
+        }
+        byte[] algorithm = address.getAlgorithm().getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = address.getEncoded();
+        ByteBuffer b = ByteBuffer.allocate(2 + algorithm.length + 4 + encoded.length);
+        b.putShort((short) algorithm.length);
+        b.put(algorithm);
+        b.putInt(encoded.length);
+        b.put(encoded);
+        Files.write(new File(directory, ADDRESS_FILE).toPath(), b.array(), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        addressIds.put(address, addresses.size());
+        addresses.add(address);
+    }
+
+    private void loadAddresses() throws IOException {
+        File file = new File(directory, ADDRESS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        Map<String, KeyFactory> keyFactories = new HashMap<String, KeyFactory>();
+        try {
+            while (buffer.hasRemaining()) {
+                byte[] algorithm = new byte[buffer.getShort() & 0xffff];
+                buffer.get(algorithm);
+                byte[] encoded = new byte[buffer.getInt()];
+                buffer.get(encoded);
+
+                String name = new String(algorithm, StandardCharsets.UTF_8);
+                KeyFactory keyFactory = keyFactories.get(name);
+                if (keyFactory == null) {
+                    keyFactory = KeyFactory.getInstance(name);
+                    keyFactories.put(name, keyFactory);
+                }
+                PublicKey address = keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+                addressIds.put(address, addresses.size());
+                addresses.add(address);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt address file " + file, e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot decode address in " + file, e);
+        }
+    }
+
+    /**
+     * Live records of a segment after replaying its log
+     */
+    private static class Replay {
+        /**
+         * Offset of the record of each live UTXO, in the order they were first added
+         */
+        final LinkedHashMap<UTXO, Integer> live = new LinkedHashMap<UTXO, Integer>();
+        int records;
+        int length;
+    }
+
+    /**
+     * Hash table from the hash code of each UTXO of a segment to the file offset of its record,
+     * with linear probing. UTXOs with the same hash code get a slot each.
+     */
+    private static class SegmentIndex {
+        static final int EMPTY = -1;
+
+        int[] hashCodes;
+        int[] offsets;
+        int size;
+
+        SegmentIndex() {
+            allocate(16);
+        }
+
+        private void allocate(int capacity) {
+            hashCodes = new int[capacity];
+            offsets = new int[capacity];
+            Arrays.fill(offsets, EMPTY);
+        }
+
+        int home(int hashCode) {
+            int h = hashCode * 0x9e3779b9;
+            return (h ^ (h >>> 16)) & (offsets.length - 1);
+        }
+
+        int next(int slot) {
+            return (slot + 1) & (offsets.length - 1);
+        }
+
+        void add(int hashCode, int offset) {
+            if (2 * (size + 1) > offsets.length) {
+                int[] oldHashCodes = hashCodes;
+                int[] oldOffsets = offsets;
+                allocate(2 * offsets.length);
+                for (int slot = 0; slot < oldOffsets.length; slot++) {
+                    if (oldOffsets[slot] != EMPTY) {
+                        insert(oldHashCodes[slot], oldOffsets[slot]);
+                    }
+                }
+            }
+            insert(hashCode, offset);
+            size++;
+        }
+
+        private void insert(int hashCode, int offset) {
+            int slot = home(hashCode);
+            while (offsets[slot] != EMPTY) {
+                slot = next(slot);
+            }
+            hashCodes[slot] = hashCode;
+            offsets[slot] = offset;
+        }
+
+        /**
+         * Empties {@code slot}, moving back the entries after it which would no longer be reachable
+         */
+        void remove(int slot) {
+            int next = slot;
+            while (true) {
+                next = next(next);
+                if (offsets[next] == EMPTY) {
+                    break;
+                }
+                int home = home(hashCodes[next]);
+                boolean reachable = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+                if (!reachable) {
+                    hashCodes[slot] = hashCodes[next];
+                    offsets[slot] = offsets[next];
+                    slot = next;
+                }
+            }
+            offsets[slot] = EMPTY;
+            size--;
+        }
+    }
+
+    /**
+     * Frozen copy of the files of a store, see {@link #snapshot(File)}. The address file holds the
+     * address records in the encoding of {@link CheckpointStore}.
+     */
+    public static class Snapshot {
+
+        private final File directory;
+
+        private final List<File> segmentFiles;
+
+        private final List<Long> segmentBytes;
+
+        private final File addressFile;
+
+        private final long addressBytes;
+
+        Snapshot(File directory, List<File> segmentFiles, List<Long> segmentBytes, File addressFile,
+                 long addressBytes) {
+            this.directory = directory;
+            this.segmentFiles = segmentFiles;
+            this.segmentBytes = segmentBytes;
+            this.addressFile = addressFile;
+            this.addressBytes = addressBytes;
+        }
+
+        /**
+         * @return the address file, or null if no address was stored
+         */
+        public File getAddressFile() {
+            return addressFile;
+        }
+
+        /**
+         * @return the length of the address file when the snapshot was taken
+         */
+        public long getAddressBytes() {
+            return addressBytes;
+        }
+
+        /**
+         * @return the number of UTXOs in the snapshot
+         */
+        public int countUTXOs() throws IOException {
+            int count = 0;
+            for (int index = 0; index < segmentFiles.size(); index++) {
+                count += replaySegment(index).live.size();
+            }
+            return count;
+        }
+
+        /**
+         * Writes the UTXOs in the snapshot as UTXO records of {@link CheckpointStore}, one segment
+         * in memory at a time
+         */
+        public void writeUTXOs(DataOutputStream out) throws IOException {
+            for (int index = 0; index < segmentFiles.size(); index++) {
+                byte[] data = Files.readAllBytes(segmentFiles.get(index).toPath());
+                Replay replay = replay(data, segmentBytes.get(index).intValue(), segmentFiles.get(index));
+                for (int offset : replay.live.values()) {
+                    //Drop the kind byte
+                    int hashLength = ByteBuffer.wrap(data, offset + 1, 2).getShort() & 0xffff;
+                    out.write(data, offset + 1, 2 + hashLength + 16);
+                }
+            }
+        }
+
+        private Replay replaySegment(int index) throws IOException {
+            File file = segmentFiles.get(index);
+            return replay(Files.readAllBytes(file.toPath()), segmentBytes.get(index).intValue(), file);
+        }
+
+        /**
+         * Deletes the snapshot's files
+         */
+        public void delete() {
+            for (File file : segmentFiles) {
+                file.delete();
+            }
+            if (addressFile != null) {
+                addressFile.delete();
+            }
+            directory.delete();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package scrooge_coin;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * UTXOPool which may be updated from several threads at once, as long as no two threads work on
+ * the same UTXO at the same time. Used by {@link TxHandler} to apply non-conflicting transactions
+ * in parallel.
+ */
+public class ConcurrentUTXOPool extends UTXOPool {
+
+    private final ConcurrentHashMap<UTXO, Transaction.Output> H;
+
+    /**
+     * Creates a new empty ConcurrentUTXOPool
+     */
+    public ConcurrentUTXOPool() {
+        H = new ConcurrentHashMap<UTXO, Transaction.Output>();
+    }
+
+    /**
+     * Creates a new ConcurrentUTXOPool that is a copy of {@code uPool}
+     */
+    public ConcurrentUTXOPool(UTXOPool uPool) {
+        H = new ConcurrentHashMap<UTXO, Transaction.Output>();
+        for (UTXO ut : uPool.getAllUTXO()) {
+            H.put(ut, uPool.getTxOutput(ut));
+        }
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        H.put(utxo, txOut);
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        H.remove(utxo);
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return H.get(ut);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        return new ArrayList<UTXO>(H.keySet());
+    }
+}
@@ -0,0 +1,110 @@
+package scrooge_coin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+public class ConflictIndex {
+
+    /**
+     * Each spent outpoint mapped to the transactions whose inputs claim it. A transaction which is
+     * added more than once appears more than once.
+     */
+    private HashMap<UTXO, List<Transaction>> H;
+
+    /**
+     * Creates a new empty ConflictIndex
+     */
+    public ConflictIndex() {
+        H = new HashMap<UTXO, List<Transaction>>();
+    }
+
+    /**
+     * Creates a new ConflictIndex containing all non-null transactions of {@code txs}
+     */
+    public ConflictIndex(Collection<Transaction> txs) {
+        this();
+        for (Transaction tx : txs) {
+            addTransaction(tx);
+        }
+    }
+
+    /**
+     * Adds every outpoint spent by {@code tx} to the index
+     */
+    public void addTransaction(Transaction tx) {
+        if (tx == null) {
+            return;
+        }
+        for (Transaction.Input input : tx.getInputs()) {
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            List<Transaction> spenders = H.get(utxo);
+            if (spenders == null) {
+                spenders = new ArrayList<Transaction>(1);
+                H.put(utxo, spenders);
+            }
+            spenders.add(tx);
+        }
+    }
+
+    /**
+     * Removes one occurrence of {@code tx} from the spenders of each outpoint it spends
+     */
+    public void removeTransaction(Transaction tx) {
+        if (tx == null) {
+            return;
+        }
+        for (Transaction.Input input : tx.getInputs()) {
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex, false);
+            List<Transaction> spenders = H.get(utxo);
+            if (spenders == null) {
+                continue;
+            }
+            for (int index = 0; index < spenders.size(); index++) {
+                if (spenders.get(index) == tx) {
+                    spenders.remove(index);
+                    break;
+                }
+            }
+            if (spenders.isEmpty()) {
+                H.remove(utxo);
+            }
+        }
+    }
+
+    /**
+     * @return the transactions spending {@code utxo}, or an empty list if there are none
+     */
+    public List<Transaction> getSpenders(UTXO utxo) {
+        List<Transaction> spenders = H.get(utxo);
+        if (spenders == null) {
+            return new ArrayList<Transaction>();
+        }
+        return spenders;
+    }
+
+    /**
+     * @return true if an outpoint spent by {@code tx} is also spent by another transaction of
+     * {@code candidates}, or by another occurrence of {@code tx} itself
+     */
+    public boolean isConflict(Transaction tx, Set<Transaction> candidates) {
+        for (Transaction.Input input : tx.getInputs()) {
+            List<Transaction> spenders = H.get(new UTXO(input.prevTxHash, input.outputIndex, false));
+            if (spenders == null) {
+                continue;
+            }
+            int count = 0;
+            for (Transaction spender : spenders) {
+                if (candidates.contains(spender)) {
+                    count++;
+                }
+            }
+            if (count > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -31,4 +31,38 @@ public class Crypto {
         return false;
 
     }
+
+    /**
+     * DER encoded DigestInfo header of a SHA-256 digest, which PKCS #1 v1.5 signs in front of it
+     */
+    private static final byte[] SHA256_DIGEST_INFO = {0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60,
+            (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20};
+
+    /**
+     * @return true if {@code signature} is a valid SHA256withRSA signature under the key
+     * {@code pubKey} of a message whose SHA-256 digest is {@code digest}, i.e. the same result as
+     * {@link #verifySignature(PublicKey, byte[], byte[])} on that message without hashing it again
+     */
+    public static boolean verifySignatureOfDigest(PublicKey pubKey, byte[] digest, byte[] signature) {
+        Signature sig = null;
+        try {
+            sig = Signature.getInstance("NONEwithRSA");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+        try {
+            sig.initVerify(pubKey);
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+            return false;
+        }
+        try {
+            sig.update(SHA256_DIGEST_INFO);
+            sig.update(digest);
+            return sig.verify(signature);
+        } catch (SignatureException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
 }
@@ -0,0 +1,313 @@
+package scrooge_coin;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar (struct of arrays) representation of the transactions of one epoch. The inputs and
+ * outputs of all transactions are packed into contiguous primitive arrays, transaction {@code t}
+ * owning inputs {@code inputStart[t]} to {@code inputStart[t + 1] - 1} and outputs
+ * {@code outputStart[t]} to {@code outputStart[t + 1] - 1}. Hashes and signatures are stored back
+ * to back in shared byte arrays, addressed by offset and length, where a length of -1 stands for
+ * null.
+ * <p>
+ * Converting a {@code Transaction[]} to a batch and back is loss-free: the same hashes,
+ * signatures, values and address objects come out, and null transactions stay null.
+ */
+public class EpochBatch {
+
+    private final int size;
+
+    /**
+     * True for the positions of the epoch holding a null transaction
+     */
+    private final boolean[] nullTx;
+
+    private final byte[][] txHashes;
+
+    private final int[] inputStart;
+    private final int[] prevHashOffset;
+    private final int[] prevHashLength;
+    private final int[] prevOutputIndex;
+    private final int[] signatureOffset;
+    private final int[] signatureLength;
+    private final byte[] hashData;
+    private final byte[] signatureData;
+
+    private final int[] outputStart;
+    private final double[] outputValue;
+    private final int[] outputAddressId;
+    private final PublicKey[] addresses;
+
+    private EpochBatch(int size, boolean[] nullTx, byte[][] txHashes, int[] inputStart,
+                       int[] prevHashOffset, int[] prevHashLength, int[] prevOutputIndex,
+                       int[] signatureOffset, int[] signatureLength, byte[] hashData,
+                       byte[] signatureData, int[] outputStart, double[] outputValue,
+                       int[] outputAddressId, PublicKey[] addresses) {
+        this.size = size;
+        this.nullTx = nullTx;
+        this.txHashes = txHashes;
+        this.inputStart = inputStart;
+        this.prevHashOffset = prevHashOffset;
+        this.prevHashLength = prevHashLength;
+        this.prevOutputIndex = prevOutputIndex;
+        this.signatureOffset = signatureOffset;
+        this.signatureLength = signatureLength;
+        this.hashData = hashData;
+        this.signatureData = signatureData;
+        this.outputStart = outputStart;
+        this.outputValue = outputValue;
+        this.outputAddressId = outputAddressId;
+        this.addresses = addresses;
+    }
+
+    /**
+     * Packs {@code txs} into a new batch
+     */
+    public static EpochBatch of(Transaction[] txs) {
+        int size = txs.length;
+        int numInputs = 0;
+        int numOutputs = 0;
+        int hashBytes = 0;
+        int signatureBytes = 0;
+        for (Transaction tx : txs) {
+            if (tx == null) {
+                continue;
+            }
+            numInputs += tx.numInputs();
+            numOutputs += tx.numOutputs();
+            for (Transaction.Input input : tx.getInputs()) {
+                hashBytes += input.prevTxHash == null ? 0 : input.prevTxHash.length;
+                signatureBytes += input.signature == null ? 0 : input.signature.length;
+            }
+        }
+
+        boolean[] nullTx = new boolean[size];
+        byte[][] txHashes = new byte[size][];
+        int[] inputStart = new int[size + 1];
+        int[] prevHashOffset = new int[numInputs];
+        int[] prevHashLength = new int[numInputs];
+        int[] prevOutputIndex = new int[numInputs];
+        int[] signatureOffset = new int[numInputs];
+        int[] signatureLength = new int[numInputs];
+        byte[] hashData = new byte[hashBytes];
+        byte[] signatureData = new byte[signatureBytes];
+        int[] outputStart = new int[size + 1];
+        double[] outputValue = new double[numOutputs];
+        int[] outputAddressId = new int[numOutputs];
+        IdentityHashMap<PublicKey, Integer> addressIds = new IdentityHashMap<PublicKey, Integer>();
+        List<PublicKey> addresses = new ArrayList<PublicKey>();
+
+        int in = 0;
+        int out = 0;
+        int hashPos = 0;
+        int signaturePos = 0;
+        for (int t = 0; t < size; t++) {
+            Transaction tx = txs[t];
+            inputStart[t] = in;
+            outputStart[t] = out;
+            if (tx == null) {
+                nullTx[t] = true;
+                continue;
+            }
+            txHashes[t] = tx.getHash();
+
+            for (Transaction.Input input : tx.getInputs()) {
+                prevOutputIndex[in] = input.outputIndex;
+                prevHashOffset[in] = hashPos;
+                if (input.prevTxHash == null) {
+                    prevHashLength[in] = -1;
+                } else {
+                    prevHashLength[in] = input.prevTxHash.length;
+                    System.arraycopy(input.prevTxHash, 0, hashData, hashPos, input.prevTxHash.length);
+                    hashPos += input.prevTxHash.length;
+                }
+                signatureOffset[in] = signaturePos;
+                if (input.signature == null) {
+                    signatureLength[in] = -1;
+                } else {
+                    signatureLength[in] = input.signature.length;
+                    System.arraycopy(input.signature, 0, signatureData, signaturePos, input.signature.length);
+                    signaturePos += input.signature.length;
+                }
+                in++;
+            }
+
+            for (Transaction.Output output : tx.getOutputs()) {
+                outputValue[out] = output.value;
+                Integer id = addressIds.get(output.address);
+                if (id == null) {
+                    id = addresses.size();
+                    addressIds.put(output.address, id);
+                    addresses.add(output.address);
+                }
+                outputAddressId[out] = id;
+                out++;
+            }
+        }
+        inputStart[size] = in;
+        outputStart[size] = out;
+
+        return new EpochBatch(size, nullTx, txHashes, inputStart, prevHashOffset, prevHashLength,
+                prevOutputIndex, signatureOffset, signatureLength, hashData, signatureData,
+                outputStart, outputValue, outputAddressId,
+                addresses.toArray(new PublicKey[addresses.size()]));
+    }
+
+    /**
+     * Unpacks the batch into new transactions, in the original order
+     */
+    public Transaction[] toTransactions() {
+        return toTransactions(null);
+    }
+
+    /**
+     * Unpacks the transactions for which {@code selected} is true into new transactions, leaving
+     * the other positions null; a null {@code selected} unpacks all of them
+     */
+    public Transaction[] toTransactions(boolean[] selected) {
+        Transaction[] txs = new Transaction[size];
+        for (int t = 0; t < size; t++) {
+            if (nullTx[t] || (selected != null && !selected[t])) {
+                continue;
+            }
+            Transaction tx = new Transaction();
+            for (int in = inputStart[t]; in < inputStart[t + 1]; in++) {
+                tx.addBorrowedInput(slice(hashData, prevHashOffset[in], prevHashLength[in]),
+                        prevOutputIndex[in]);
+                tx.addBorrowedSignature(slice(signatureData, signatureOffset[in], signatureLength[in]),
+                        in - inputStart[t]);
+            }
+            for (int out = outputStart[t]; out < outputStart[t + 1]; out++) {
+                tx.addOutput(outputValue[out], addresses[outputAddressId[out]]);
+            }
+            tx.setHash(txHashes[t]);
+            txs[t] = tx;
+        }
+        return txs;
+    }
+
+    /**
+     * @return the number of transactions, including null ones
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the total number of inputs of the epoch
+     */
+    public int numInputs() {
+        return inputStart[size];
+    }
+
+    /**
+     * @return the total number of outputs of the epoch
+     */
+    public int numOutputs() {
+        return outputStart[size];
+    }
+
+    /**
+     * @return true if every transaction of the batch has its hash set
+     */
+    public boolean isHashed() {
+        for (int t = 0; t < size; t++) {
+            if (!nullTx[t] && txHashes[t] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sums the values of the outputs claimed by the inputs of each transaction, in input order. A
+     * claimed output is looked up in {@code utxoPool} and among the outputs of the batch itself,
+     * the latter by the hashes of the batch, see {@link #isHashed()}.
+     *
+     * @param utxoPool
+     * @return the input sum of each transaction, 0 for null transactions and NaN for those
+     * claiming an output found in neither
+     */
+    public double[] getInputSums(UTXOPool utxoPool) {
+        Map<UTXO, Integer> batchOutputs = new HashMap<UTXO, Integer>(numOutputs() * 2);
+        for (int t = 0; t < size; t++) {
+            if (txHashes[t] == null) {
+                continue;
+            }
+            for (int out = outputStart[t]; out < outputStart[t + 1]; out++) {
+                batchOutputs.put(new UTXO(txHashes[t], out - outputStart[t], false), out);
+            }
+        }
+
+        double[] sums = new double[size];
+        for (int t = 0; t < size; t++) {
+            double sum = 0;
+            for (int in = inputStart[t], end = inputStart[t + 1]; in < end; in++) {
+                byte[] prevTxHash = slice(hashData, prevHashOffset[in], prevHashLength[in]);
+                if (prevTxHash == null) {
+                    sum = Double.NaN;
+                    break;
+                }
+                UTXO utxo = new UTXO(prevTxHash, prevOutputIndex[in], false);
+                Transaction.Output output = utxoPool.getTxOutput(utxo);
+                if (output != null) {
+                    sum += output.value;
+                    continue;
+                }
+                Integer out = batchOutputs.get(utxo);
+                if (out == null) {
+                    sum = Double.NaN;
+                    break;
+                }
+                sum += outputValue[out];
+            }
+            sums[t] = sum;
+        }
+        return sums;
+    }
+
+    /**
+     * @return the sum of the output values of each transaction, 0 for null transactions
+     */
+    public double[] getOutputSums() {
+        double[] sums = new double[size];
+        for (int t = 0; t < size; t++) {
+            double sum = 0;
+            for (int out = outputStart[t], end = outputStart[t + 1]; out < end; out++) {
+                sum += outputValue[out];
+            }
+            sums[t] = sum;
+        }
+        return sums;
+    }
+
+    /**
+     * @return for each transaction, true if none of its output values is negative (Case-4 of
+     * {@link TxHandler#isValidTx(Transaction)}); null transactions are reported as false
+     */
+    public boolean[] getNonNegativeOutputs() {
+        boolean[] nonNegative = new boolean[size];
+        for (int t = 0; t < size; t++) {
+            boolean valid = !nullTx[t];
+            for (int out = outputStart[t], end = outputStart[t + 1]; out < end; out++) {
+                valid &= !(outputValue[out] < 0);
+            }
+            nonNegative[t] = valid;
+        }
+        return nonNegative;
+    }
+
+    private static byte[] slice(byte[] data, int offset, int length) {
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        System.arraycopy(data, offset, bytes, 0, length);
+        return bytes;
+    }
+}
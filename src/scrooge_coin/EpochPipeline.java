@@ -0,0 +1,396 @@
+package scrooge_coin;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs consecutive epochs through a {@link TxHandler} as four overlapping stages connected by
+ * bounded queues:
+ * <ol>
+ * <li>decode: turns the submitted raw epoch into a {@code Transaction[]},</li>
+ * <li>verify: computes transaction hashes, with the handler's {@link TxHashService} if it has
+ * one, and checks input signatures ahead of time,</li>
+ * <li>apply: handles the epoch like {@link TxHandler#handleTxs(Transaction[])} without hashing it
+ * again, trusting the signatures verified by the previous stage,</li>
+ * <li>persist: writes a checkpoint every {@code checkpointInterval} epochs on the background
+ * writer of a {@link CheckpointStore}.</li>
+ * </ol>
+ * While epoch N is applied, epoch N+1 can already be decoded and verified. A full queue blocks the
+ * stage feeding it, down to {@link #submit(Object)}, so the pipeline runs at the speed of its
+ * slowest stage. Results come out in submission order through {@link #take()}.
+ * <p>
+ * The signature check of the verify stage is speculative: it looks up the address of each spent
+ * output among the outputs of the epochs not applied yet, or else in the pool, which may change
+ * before the epoch is applied. The apply stage only trusts a recorded signature if it was checked
+ * against the address actually found in the pool, so the accepted transactions are the same as
+ * when calling {@code handleTxs} directly. The verify stage only keeps the outputs of the epochs
+ * between it and the apply stage, so its memory use is bounded by the queue capacity.
+ */
+public class EpochPipeline<R> {
+
+    /**
+     * Turns a raw epoch into the transactions proposed in it
+     */
+    public interface Decoder<R> {
+        Transaction[] decode(R raw) throws Exception;
+    }
+
+    /**
+     * Outcome of one submitted epoch
+     */
+    public static class EpochResult {
+
+        private final long sequence;
+
+        private final Transaction[] acceptedTxs;
+
+        private final Exception error;
+
+        public EpochResult(long sequence, Transaction[] acceptedTxs, Exception error) {
+            this.sequence = sequence;
+            this.acceptedTxs = acceptedTxs;
+            this.error = error;
+        }
+
+        /**
+         * @return the position of the epoch in submission order, starting at 0
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the transactions accepted by the handler, or null if the epoch failed
+         */
+        public Transaction[] getAcceptedTxs() {
+            return acceptedTxs;
+        }
+
+        /**
+         * @return the exception which made the epoch fail, or null
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    private final TxHandler txHandler;
+
+    private final Decoder<R> decoder;
+
+    private final CheckpointStore checkpointStore;
+
+    private final int checkpointInterval;
+
+    private final BlockingQueue<Epoch> decodeQueue;
+
+    private final BlockingQueue<Epoch> verifyQueue;
+
+    private final BlockingQueue<Epoch> applyQueue;
+
+    private final BlockingQueue<Epoch> resultQueue;
+
+    private final VerifiedSignatures verifiedSignatures;
+
+    /**
+     * Addresses of the outputs created by the epochs verified but not applied yet. Filled by the
+     * verify stage and emptied by the apply stage.
+     */
+    private final ConcurrentHashMap<UTXO, PublicKey> pendingAddresses;
+
+    /**
+     * Held by the apply stage while it changes the pool, and by the verify stage while it reads it
+     */
+    private final Object poolLock = new Object();
+
+    private final Thread[] threads;
+
+    /**
+     * Guards submissions, separately from {@link #take()} so that a consumer is never blocked by a
+     * producer waiting for queue space
+     */
+    private final Object submitLock = new Object();
+
+    private long nextSequence;
+
+    private boolean closed;
+
+    private boolean finished;
+
+    /**
+     * Creates a pipeline feeding {@code txHandler}, which must not be used by anyone else until
+     * {@link #take()} returns null.
+     *
+     * @param txHandler
+     * @param decoder
+     * @param queueCapacity      number of epochs each queue can hold
+     * @param checkpointStore    where to write checkpoints, or null for none
+     * @param checkpointInterval number of epochs between checkpoints, at least 1
+     */
+    public EpochPipeline(TxHandler txHandler, Decoder<R> decoder, int queueCapacity,
+                         CheckpointStore checkpointStore, int checkpointInterval) {
+        if (checkpointInterval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive: " + checkpointInterval);
+        }
+        this.txHandler = txHandler;
+        this.decoder = decoder;
+        this.checkpointStore = checkpointStore;
+        this.checkpointInterval = checkpointInterval;
+        this.decodeQueue = new ArrayBlockingQueue<Epoch>(queueCapacity);
+        this.verifyQueue = new ArrayBlockingQueue<Epoch>(queueCapacity);
+        this.applyQueue = new ArrayBlockingQueue<Epoch>(queueCapacity);
+        this.resultQueue = new ArrayBlockingQueue<Epoch>(queueCapacity);
+
+        this.verifiedSignatures = new VerifiedSignatures();
+        txHandler.setVerifiedSignatures(verifiedSignatures);
+
+        this.pendingAddresses = new ConcurrentHashMap<UTXO, PublicKey>();
+
+        this.threads = new Thread[]{
+                newStage("epoch-decode", decodeQueue, verifyQueue, new Step() {
+                    public void process(Epoch epoch) throws Exception {
+                        decode(epoch);
+                    }
+                }),
+                newStage("epoch-verify", verifyQueue, applyQueue, new Step() {
+                    public void process(Epoch epoch) {
+                        verify(epoch);
+                    }
+                }),
+                newStage("epoch-apply", applyQueue, resultQueue, new Step() {
+                    public void process(Epoch epoch) {
+                        apply(epoch);
+                    }
+                })
+        };
+    }
+
+    /**
+     * Starts the stage threads
+     */
+    public void start() {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Submits the next epoch, blocking while the decode queue is full
+     */
+    public void submit(R raw) throws InterruptedException {
+        synchronized (submitLock) {
+            if (closed) {
+                throw new IllegalStateException("Pipeline is closed");
+            }
+            decodeQueue.put(new Epoch(nextSequence++, raw, false));
+        }
+    }
+
+    /**
+     * Signals that no more epochs will be submitted. The epochs already submitted are still handled.
+     */
+    public void close() throws InterruptedException {
+        synchronized (submitLock) {
+            if (!closed) {
+                closed = true;
+                decodeQueue.put(new Epoch(nextSequence, null, true));
+            }
+        }
+    }
+
+    /**
+     * Waits for the result of the next epoch in submission order
+     *
+     * @return the result, or null once every epoch submitted before {@link #close()} was returned
+     */
+    public synchronized EpochResult take() throws InterruptedException {
+        if (finished) {
+            return null;
+        }
+        Epoch epoch = resultQueue.take();
+        if (epoch.end) {
+            finished = true;
+            txHandler.setVerifiedSignatures(null);
+            return null;
+        }
+        return new EpochResult(epoch.sequence, epoch.acceptedTxs, epoch.error);
+    }
+
+    private void decode(Epoch epoch) throws Exception {
+        epoch.txs = decoder.decode(epoch.raw);
+        epoch.raw = null;
+    }
+
+    private void verify(Epoch epoch) {
+        try {
+            TxHashService hashService = txHandler.getHashService();
+            if (hashService != null) {
+                hashService.hashAll(epoch.txs);
+            } else {
+                for (Transaction tx : epoch.txs) {
+                    if (tx != null) {
+                        tx.finalize();
+                    }
+                }
+            }
+
+            //Read the addresses of the spent outputs no pending epoch creates in one go, as the
+            //pool can only be read while the apply stage is not changing it
+            HashSet<UTXO> created = new HashSet<UTXO>();
+            for (Transaction tx : epoch.txs) {
+                if (tx != null) {
+                    for (int index = 0; index < tx.numOutputs(); index++) {
+                        created.add(new UTXO(tx.getHash(), index));
+                    }
+                }
+            }
+            HashMap<UTXO, PublicKey> poolAddresses = new HashMap<UTXO, PublicKey>();
+            for (Transaction tx : epoch.txs) {
+                if (tx == null) {
+                    continue;
+                }
+                for (Transaction.Input input : tx.getInputs()) {
+                    if (input.prevTxHash == null) {
+                        continue;
+                    }
+                    UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex, false);
+                    if (!created.contains(utxo) && !pendingAddresses.containsKey(utxo)) {
+                        poolAddresses.put(utxo, null);
+                    }
+                }
+            }
+            synchronized (poolLock) {
+                UTXOPool utxoPool = txHandler.getUTXOPool();
+                for (Map.Entry<UTXO, PublicKey> entry : poolAddresses.entrySet()) {
+                    Transaction.Output output = utxoPool.getTxOutput(entry.getKey());
+                    if (output != null) {
+                        entry.setValue(output.address);
+                    }
+                }
+            }
+
+            HashSet<UTXO> spent = new HashSet<UTXO>();
+            for (Transaction tx : epoch.txs) {
+                if (tx == null) {
+                    continue;
+                }
+                SignData signData = new SignData(tx);
+                for (int index = 0; index < tx.numInputs(); index++) {
+                    Transaction.Input input = tx.getInput(index);
+                    if (input.prevTxHash == null) {
+                        continue;
+                    }
+                    UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex, false);
+                    //Only the first claim of an output in the epoch can be accepted
+                    if (!spent.add(utxo)) {
+                        continue;
+                    }
+                    PublicKey address = pendingAddresses.get(utxo);
+                    if (address == null) {
+                        address = poolAddresses.get(utxo);
+                    }
+                    if (address != null && signData.verify(index, address)) {
+                        verifiedSignatures.record(input, address, signData.getDigest(index));
+                    }
+                }
+
+                byte[] hash = tx.getHash();
+                for (int index = 0; index < tx.numOutputs(); index++) {
+                    UTXO utxo = new UTXO(hash, index);
+                    pendingAddresses.put(utxo, tx.getOutput(index).address);
+                    epoch.createdUTXOs.add(utxo);
+                }
+            }
+        } catch (RuntimeException e) {
+            //The apply stage skips failed epochs, so forget what was kept for it here
+            discard(epoch);
+            throw e;
+        }
+    }
+
+    private void apply(Epoch epoch) {
+        try {
+            synchronized (poolLock) {
+                epoch.acceptedTxs = txHandler.handleHashedTxs(epoch.txs);
+                if (checkpointStore != null && txHandler.getEpoch() % checkpointInterval == 0) {
+                    txHandler.checkpoint(checkpointStore);
+                }
+            }
+        } finally {
+            discard(epoch);
+        }
+        epoch.txs = null;
+    }
+
+    /**
+     * Forgets the signatures verified and the outputs created for {@code epoch}. Its accepted
+     * outputs are in the pool by now.
+     */
+    private void discard(Epoch epoch) {
+        for (Transaction tx : epoch.txs) {
+            verifiedSignatures.forget(tx);
+        }
+        for (UTXO utxo : epoch.createdUTXOs) {
+            pendingAddresses.remove(utxo);
+        }
+        epoch.createdUTXOs.clear();
+    }
+
+    private Thread newStage(String name, final BlockingQueue<Epoch> in, final BlockingQueue<Epoch> out,
+                            final Step step) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Epoch epoch = in.take();
+                        if (!epoch.end && epoch.error == null) {
+                            try {
+                                step.process(epoch);
+                            } catch (Exception e) {
+                                epoch.error = e;
+                            }
+                        }
+                        out.put(epoch);
+                        if (epoch.end) {
+                            return;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private abstract class Step {
+        abstract void process(Epoch epoch) throws Exception;
+    }
+
+    /**
+     * State of one epoch, handed from stage to stage through the queues
+     */
+    private class Epoch {
+        long sequence;
+        R raw;
+        boolean end;
+        Transaction[] txs;
+        Transaction[] acceptedTxs;
+        Exception error;
+        List<UTXO> createdUTXOs = new ArrayList<UTXO>();
+
+        public Epoch(long sequence, R raw, boolean end) {
+            this.sequence = sequence;
+            this.raw = raw;
+            this.end = end;
+        }
+    }
+}
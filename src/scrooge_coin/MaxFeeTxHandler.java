@@ -1,11 +1,36 @@
 package scrooge_coin;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.DoubleAccumulator;
 
 public class MaxFeeTxHandler {
 
+    /**
+     * Below this number of remaining transactions the parallel search explores branches sequentially
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 8;
+
+    /**
+     * Tolerance used when pruning with the shared bound, to absorb floating point rounding
+     */
+    private static final double PRUNE_EPSILON = 1e-9;
+
     private UTXOPool utxoPool;
 
+    /**
+     * Number of epochs handled, including the ones before the checkpoint this ledger started from
+     */
+    private long epoch;
+
+    /**
+     * Service hashing each epoch up front, or null if transactions are hashed as they are applied
+     */
+    private TxHashService hashService;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
@@ -15,6 +40,47 @@ public class MaxFeeTxHandler {
         this.utxoPool = new UTXOPool(utxoPool);
     }
 
+    /**
+     * Creates a public ledger continuing from {@code checkpoint}, e.g. the one returned by
+     * {@link CheckpointStore#loadLatest()}. The restored pool is used without copying it.
+     */
+    public MaxFeeTxHandler(CheckpointStore.Checkpoint checkpoint) {
+        this.utxoPool = checkpoint.getUTXOPool();
+        this.epoch = checkpoint.getEpoch();
+    }
+
+    /**
+     * @return the current UTXO pool
+     */
+    public UTXOPool getUTXOPool() {
+        return utxoPool;
+    }
+
+    /**
+     * @return the number of epochs handled
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Writes a checkpoint of the current UTXO pool and epoch to {@code store}, see
+     * {@link CheckpointStore#save(UTXOPool, long)}: an in-memory pool is copied before this returns,
+     * then handling of the next epochs may continue while the file is written.
+     */
+    public Future<File> checkpoint(CheckpointStore store) {
+        return store.save(utxoPool, epoch);
+    }
+
+    /**
+     * Makes every handleTxs call hash all proposed transactions with {@code hashService} first,
+     * in parallel, instead of hashing each accepted transaction while the pool is updated; null
+     * restores the latter. The proposed transactions must not change while they are handled.
+     */
+    public void setHashService(TxHashService hashService) {
+        this.hashService = hashService;
+    }
+
     /**
      * @return true if:
      * (1) all outputs claimed by {@code tx} are in the current UTXO pool,
@@ -42,13 +108,15 @@ public class MaxFeeTxHandler {
         }
 
         Set<Integer> checkUnique = new HashSet<Integer>();
+        SignData signData = null;
         double totalInValue = 0;
         for (int index = 0; index < tx.numInputs(); index++) {
             Transaction.Input input = tx.getInput(index);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex, false);
 
             //Check this utxo exist in pool : Case-1
-            if (!utxoPool.contains(utxo)) {
+            Transaction.Output userOutput = utxoPool.getTxOutput(utxo);
+            if (userOutput == null) {
                 return false;
             }
 
@@ -58,9 +126,11 @@ public class MaxFeeTxHandler {
             }
             checkUnique.add(utxo.hashCode());
 
-            Transaction.Output userOutput = utxoPool.getTxOutput(utxo);
             //Signature not match for a user : Case-2
-            if (!Crypto.verifySignature(userOutput.address, tx.getRawDataToSign(index), input.signature)) {
+            if (signData == null) {
+                signData = new SignData(tx);
+            }
+            if (!signData.verify(index, userOutput.address)) {
                 return false;
             }
             totalInValue += userOutput.value;
@@ -89,24 +159,238 @@ public class MaxFeeTxHandler {
      * updating the current UTXO pool as appropriate.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        hashEpoch(possibleTxs);
+        List<Transaction> txs = Arrays.asList(possibleTxs);
+        Response response = getMaxProfitValidTxs(utxoPool, txs, new ConflictIndex(txs));
+
+        List<Transaction> resultTxs = response.txs;
+        epoch++;
+        return resultTxs.toArray(new Transaction[resultTxs.size()]);
+    }
+
+    /**
+     * Parallel variant of {@link #handleTxs(Transaction[])} running on the common fork-join pool.
+     */
+    public Transaction[] handleTxsParallel(Transaction[] possibleTxs) {
+        return handleTxsParallel(possibleTxs, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Parallel variant of {@link #handleTxs(Transaction[])}. Sibling branches of the search are
+     * explored as fork-join tasks which share the best fee found so far, so that branches which
+     * cannot beat it are pruned. The accepted transactions are the same as the ones returned by
+     * the sequential search. Every transaction which may be accepted is hashed once before the
+     * search, so that the tasks only read the shared transactions.
+     *
+     * @param possibleTxs
+     * @param forkJoinPool
+     * @return mutually valid array of accepted transactions
+     */
+    public Transaction[] handleTxsParallel(Transaction[] possibleTxs, ForkJoinPool forkJoinPool) {
+        hashCandidates(possibleTxs);
         List<Transaction> txs = Arrays.asList(possibleTxs);
-        Response response = getMaxProfitValidTxs(utxoPool, txs);
+        DoubleAccumulator bestProfit = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+        Response response = forkJoinPool.invoke(
+                new SearchTask(new UTXOPool(utxoPool), txs, 0, new ConflictIndex(txs), bestProfit));
 
         List<Transaction> resultTxs = response.txs;
+        for (Transaction tx : resultTxs) {
+            applyIntoThePool(utxoPool, tx);
+        }
+        epoch++;
         return resultTxs.toArray(new Transaction[resultTxs.size()]);
     }
 
-    private Response getMaxProfitValidTxs(UTXOPool utxoPool, List<Transaction> txs) {
+    /**
+     * Anytime variant of {@link #handleTxs(Transaction[])}. A greedy selection of mutually valid
+     * transactions is computed first and then improved by a depth-first search over the same
+     * choices as the exact search, until the search space is exhausted or {@code budget} runs out
+     * or is cancelled. Branches whose pool outputs are not worth more than the best fee found so
+     * far cannot beat it and are pruned. The best selection found is applied to the current UTXO
+     * pool.
+     *
+     * @param possibleTxs
+     * @param budget
+     * @return the best selection found, whether the search space was explored completely, and an
+     * upper bound of the fee the rest of the search could have found
+     */
+    public SearchResult handleTxs(Transaction[] possibleTxs, SearchBudget budget) {
+        //Check for input value and return
+        if (possibleTxs == null) {
+            return new SearchResult(new Transaction[0], 0, 0, true, 0);
+        }
+
+        hashEpoch(possibleTxs);
+        List<Transaction> txs = Arrays.asList(possibleTxs);
+        SearchState state = new SearchState(budget, new ConflictIndex(txs));
+        List<Transaction> greedyTxs = new ArrayList<Transaction>();
+        state.offer(getGreedyProfit(new UTXOPool(utxoPool), txs, greedyTxs), greedyTxs);
+
+        search(new UTXOPool(utxoPool), txs, 0, new ArrayList<Transaction>(), state);
+
+        for (Transaction tx : state.bestTxs) {
+            updateTransactionIntoThePool(utxoPool, tx);
+        }
+        epoch++;
+        Transaction[] resultTxs = state.bestTxs.toArray(new Transaction[state.bestTxs.size()]);
+        double upperBound = Math.max(state.bestProfit, state.openBound);
+        return new SearchResult(resultTxs, state.bestProfit, upperBound, !state.stopped, state.nodes);
+    }
+
+    /**
+     * Accepts valid transactions in the given pool, in order and until no more of them become
+     * valid, appending them to {@code result}.
+     *
+     * @param utxoPool
+     * @param txs
+     * @param result
+     * @return total profit of the accepted transactions
+     */
+    private double getGreedyProfit(UTXOPool utxoPool, List<Transaction> txs, List<Transaction> result) {
+        double profit = 0;
+        boolean isFoundValidTx = true;
+        while (isFoundValidTx) {
+            isFoundValidTx = false;
+            List<Transaction> invalidTxs = new ArrayList<Transaction>();
+            for (Transaction tx : txs) {
+                if (isValidTx(utxoPool, tx)) {
+                    profit += getProfitForTransaction(utxoPool, tx);
+                    updateTransactionIntoThePool(utxoPool, tx);
+                    result.add(tx);
+                    isFoundValidTx = true;
+                } else {
+                    invalidTxs.add(tx);
+                }
+            }
+            txs = invalidTxs;
+        }
+        return profit;
+    }
+
+    /**
+     * Depth-first search which offers every complete selection reachable from {@code path} to
+     * {@code state}, except the ones of branches which cannot beat the best fee offered so far.
+     * Once the budget runs out, the upper bound of every branch left unexplored is recorded in
+     * {@code state}. The given pool is owned by this call and gets modified.
+     *
+     * @param utxoPool
+     * @param txs
+     * @param pathProfit
+     * @param path
+     * @param state
+     */
+    private void search(UTXOPool utxoPool, List<Transaction> txs, double pathProfit,
+                        List<Transaction> path, SearchState state) {
+        if (state.shouldStop()) {
+            state.leaveOpen(pathProfit + getProfitUpperBound(utxoPool, txs));
+            return;
+        }
+        state.nodes++;
+
+        Level level = expandLevel(utxoPool, txs, state.conflictIndex, path, false);
+        double profit = pathProfit + level.profit;
+        List<Transaction> nextValidTxs = level.nextValidTxs;
+
+        //No conflicting transaction left, this is a complete selection
+        if (nextValidTxs.isEmpty()) {
+            state.offer(profit, path);
+            return;
+        }
+
+        //Branch cannot beat the best selection found so far
+        List<Transaction> remainingTxs = new ArrayList<Transaction>(nextValidTxs);
+        remainingTxs.addAll(level.nextInValidTxs);
+        if (profit + getProfitUpperBound(utxoPool, remainingTxs) + PRUNE_EPSILON < state.bestProfit) {
+            return;
+        }
+
+        //Once stopped, each remaining branch only records its bound
+        for (int index = 0; index < nextValidTxs.size(); index++) {
+            UTXOPool localUtxoPool = new UTXOPool(utxoPool);
+            Transaction tx = nextValidTxs.get(index);
+            double localProfit = getProfitForTransaction(localUtxoPool, tx);
+            updateTransactionIntoThePool(localUtxoPool, tx);
+
+            List<Transaction> localPath = new ArrayList<Transaction>(path);
+            localPath.add(tx);
+
+            List<Transaction> localTxs = new ArrayList<Transaction>(nextValidTxs);
+            localTxs.remove(index);
+            localTxs.addAll(level.nextInValidTxs);
+
+            search(localUtxoPool, localTxs, profit + localProfit, localPath, state);
+        }
+    }
+
+    private Response getMaxProfitValidTxs(UTXOPool utxoPool, List<Transaction> txs,
+                                          ConflictIndex conflictIndex) {
 
         //Check for empty or reach to the end
         if (txs.isEmpty()) {
             return new Response(0, new ArrayList<Transaction>());
         }
 
+        List<Transaction> result = new ArrayList<Transaction>();
+        Level level = expandLevel(utxoPool, txs, conflictIndex, result, false);
+        double profit = level.profit;
+        List<Transaction> nextValidTxs = level.nextValidTxs;
+        List<Transaction> nextInValidTxs = level.nextInValidTxs;
+
+        //No valid transaction
+        if (nextValidTxs.isEmpty()) {
+            return new Response(profit, result);
+        }
+
+        int maxProfitIndex = 0;
+        double maxProfitValue = 0.0;
+        for (int index = 0; index < nextValidTxs.size(); index++) {
+            UTXOPool localUtxoPool = new UTXOPool(utxoPool);
+            Transaction tx = new Transaction(nextValidTxs.get(index));
+            double localProfit = getProfitForTransaction(localUtxoPool, tx);
+            updateTransactionIntoThePool(localUtxoPool, tx);
+
+            List<Transaction> localTxs = new ArrayList<Transaction>(nextValidTxs);
+            localTxs.remove(index);
+            localTxs.addAll(nextInValidTxs);
+
+            Response localResponse = getMaxProfitValidTxs(localUtxoPool, localTxs, conflictIndex);
+            if ((localResponse.profit + localProfit) > maxProfitValue) {
+                maxProfitIndex = index;
+                maxProfitValue = localResponse.profit + localProfit;
+            }
+        }
+
+        Transaction tx = nextValidTxs.get(maxProfitIndex);
+        profit += getProfitForTransaction(utxoPool, tx);
+        updateTransactionIntoThePool(utxoPool, tx);
+        result.add(tx);
+
+        List<Transaction> nextTransaction = new ArrayList<Transaction>(nextValidTxs);
+        nextTransaction.remove(maxProfitIndex);
+        nextTransaction.addAll(nextInValidTxs);
+        Response respone = getMaxProfitValidTxs(utxoPool, nextTransaction, conflictIndex);
+
+        profit += respone.profit;
+        result.addAll(respone.txs);
+        return new Response(profit, result);
+    }
+
+    /**
+     * Repeatedly applies every valid transaction which does not conflict with any other valid
+     * transaction to the given pool, appending it to {@code result}, until no more such
+     * transactions exist.
+     *
+     * @param utxoPool
+     * @param txs
+     * @param conflictIndex spenders of the outpoints claimed by {@code txs}
+     * @param result
+     * @param hashed         true if the transactions were already hashed
+     * @return the collected profit and the remaining conflicting and invalid transactions
+     */
+    private Level expandLevel(UTXOPool utxoPool, List<Transaction> txs, ConflictIndex conflictIndex,
+                              List<Transaction> result, boolean hashed) {
         List<Transaction> nextValidTxs = new ArrayList<Transaction>();
         List<Transaction> nextInValidTxs = new ArrayList<Transaction>();
-
-        List<Transaction> result = new ArrayList<Transaction>();
         double profit = 0;
 
         while (true) {
@@ -131,9 +415,10 @@ public class MaxFeeTxHandler {
                 break;
             }
 
+            Set<Transaction> candidates = new HashSet<Transaction>(validTxs);
             Set<Integer> tmpIndexs = new HashSet<>();
             for (int index = 0; index < validTxs.size(); index++) {
-                if (isNonConflict(index, validTxs)) {
+                if (!conflictIndex.isConflict(validTxs.get(index), candidates)) {
                     tmpIndexs.add(index);
                 }
             }
@@ -143,7 +428,11 @@ public class MaxFeeTxHandler {
                 Transaction tx = validTxs.get(index);
                 if (tmpIndexs.contains(index)) {
                     profit += getProfitForTransaction(utxoPool, tx);
-                    updateTransactionIntoThePool(utxoPool, tx);
+                    if (hashed) {
+                        applyIntoThePool(utxoPool, tx);
+                    } else {
+                        updateTransactionIntoThePool(utxoPool, tx);
+                    }
                     result.add(tx);
                 } else {
                     tmpValidTxs.add(tx);
@@ -153,86 +442,72 @@ public class MaxFeeTxHandler {
             nextValidTxs.addAll(tmpValidTxs);
             txs = invalidTxs;
         }
+        return new Level(profit, nextValidTxs, nextInValidTxs);
+    }
 
-        //No valid transaction
-        if (nextValidTxs.isEmpty()) {
-            return new Response(profit, result);
+    /**
+     * Hashes {@code possibleTxs} up front if a hash service is set, see
+     * {@link #hashCandidates(Transaction[])}
+     */
+    private void hashEpoch(Transaction[] possibleTxs) {
+        if (hashService != null) {
+            hashCandidates(possibleTxs);
         }
+    }
 
-        int maxProfitIndex = 0;
-        double maxProfitValue = 0.0;
-        for (int index = 0; index < nextValidTxs.size(); index++) {
-            UTXOPool localUtxoPool = new UTXOPool(utxoPool);
-            Transaction tx = new Transaction(nextValidTxs.get(index));
-            double localProfit = getProfitForTransaction(localUtxoPool, tx);
-            updateTransactionIntoThePool(localUtxoPool, tx);
-
-            List<Transaction> localTxs = new ArrayList<Transaction>(nextValidTxs);
-            localTxs.remove(index);
-            localTxs.addAll(nextInValidTxs);
-
-            Response localResponse = getMaxProfitValidTxs(localUtxoPool, localTxs);
-            if ((localResponse.profit + localProfit) > maxProfitValue) {
-                maxProfitIndex = index;
-                maxProfitValue = localResponse.profit;
+    /**
+     * Hashes {@code possibleTxs}, with the hash service if one is set, except for the ones which
+     * have a negative output value and so are never accepted (Case-4)
+     */
+    private void hashCandidates(Transaction[] possibleTxs) {
+        List<Transaction> txs = new ArrayList<Transaction>(possibleTxs.length);
+        for (Transaction tx : possibleTxs) {
+            if (tx != null && hasNonNegativeOutputs(tx)) {
+                txs.add(tx);
             }
         }
-
-        Transaction tx = nextValidTxs.get(maxProfitIndex);
-        profit += getProfitForTransaction(utxoPool, tx);
-        updateTransactionIntoThePool(utxoPool, tx);
-        result.add(tx);
-
-        List<Transaction> nextTransaction = new ArrayList<Transaction>(nextValidTxs);
-        nextTransaction.remove(maxProfitIndex);
-        nextTransaction.addAll(nextInValidTxs);
-        Response respone = getMaxProfitValidTxs(utxoPool, nextTransaction);
-
-        profit += respone.profit;
-        result.addAll(respone.txs);
-        return new Response(profit, result);
+        if (hashService != null) {
+            hashService.hashAll(txs.toArray(new Transaction[txs.size()]));
+            return;
+        }
+        for (Transaction tx : txs) {
+            tx.finalize();
+        }
     }
 
-    private boolean isNonConflict(int index, List<Transaction> txs) {
-        Transaction tx = txs.get(index);
-        for (int j = 0; j < txs.size(); j++) {
-            if (index != j && isConflict(tx, txs.get(j))) {
+    private static boolean hasNonNegativeOutputs(Transaction tx) {
+        for (int index = 0; index < tx.numOutputs(); index++) {
+            if (tx.getOutput(index).value < 0) {
                 return false;
             }
         }
         return true;
     }
 
-    private boolean isConflict(Transaction first, Transaction second) {
-        Set<Integer> checkUnique = new HashSet<>();
-        for (Transaction.Input input : first.getInputs()) {
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-            checkUnique.add(utxo.hashCode());
-        }
-
-        for (Transaction.Input input : second.getInputs()) {
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-            if (checkUnique.contains(utxo.hashCode())) {
-                return true;
-            } else {
-                checkUnique.add(utxo.hashCode());
-            }
+    /**
+     * Update the transaction in the given pool
+     *
+     * @param utxoPool
+     * @param tx
+     */
+    private void updateTransactionIntoThePool(UTXOPool utxoPool, Transaction tx) {
+        if (hashService == null) {
+            tx.finalize();
         }
-        return false;
+        applyIntoThePool(utxoPool, tx);
     }
 
     /**
-     * Update the transaction in the given pool
+     * Spends the inputs of the already hashed {@code tx} and adds its outputs to the given pool
      *
      * @param utxoPool
      * @param tx
      */
-    private void updateTransactionIntoThePool(UTXOPool utxoPool, Transaction tx) {
-        tx.finalize();
+    private void applyIntoThePool(UTXOPool utxoPool, Transaction tx) {
         byte[] hash = tx.getHash();
 
         for (Transaction.Input input : tx.getInputs()) {
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex, false);
             utxoPool.removeUTXO(utxo);
         }
 
@@ -243,6 +518,33 @@ public class MaxFeeTxHandler {
         }
     }
 
+    /**
+     * Upper bound of the profit any subset of {@code txs} can collect from the given pool: fees
+     * are paid from pool outputs, so they never exceed the value of the distinct pool outputs
+     * that are spent by the transactions.
+     *
+     * @param utxoPool
+     * @param txs
+     * @return upper bound of the profit
+     */
+    private double getProfitUpperBound(UTXOPool utxoPool, List<Transaction> txs) {
+        Set<UTXO> spent = new HashSet<UTXO>();
+        double bound = 0;
+        for (Transaction tx : txs) {
+            if (tx == null) {
+                continue;
+            }
+            for (Transaction.Input input : tx.getInputs()) {
+                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex, false);
+                Transaction.Output output = utxoPool.getTxOutput(utxo);
+                if (output != null && output.value > 0 && spent.add(utxo)) {
+                    bound += output.value;
+                }
+            }
+        }
+        return bound;
+    }
+
     /**
      * Caller need to be ensure that transaction is valid for given pool
      * Get total profit from the transaction corresponding to given utxoPool
@@ -255,7 +557,7 @@ public class MaxFeeTxHandler {
         double totalInValue = 0;
         for (int index = 0; index < tx.numInputs(); index++) {
             Transaction.Input input = tx.getInput(index);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex, false);
             Transaction.Output userOutput = utxoPool.getTxOutput(utxo);
             totalInValue += userOutput.value;
         }
@@ -279,4 +581,150 @@ public class MaxFeeTxHandler {
             this.txs = txs;
         }
     }
+
+    /**
+     * Explores one branch of the search. The pool is owned by the task; child tasks get their own
+     * copies.
+     */
+    private class SearchTask extends RecursiveTask<Response> {
+        private static final long serialVersionUID = 1L;
+
+        UTXOPool utxoPool;
+        List<Transaction> txs;
+        double baseProfit;
+        ConflictIndex conflictIndex;
+        DoubleAccumulator bestProfit;
+
+        public SearchTask(UTXOPool utxoPool, List<Transaction> txs, double baseProfit,
+                          ConflictIndex conflictIndex, DoubleAccumulator bestProfit) {
+            this.utxoPool = utxoPool;
+            this.txs = txs;
+            this.baseProfit = baseProfit;
+            this.conflictIndex = conflictIndex;
+            this.bestProfit = bestProfit;
+        }
+
+        @Override
+        protected Response compute() {
+            //Branch cannot beat the best selection found so far
+            if (baseProfit + getProfitUpperBound(utxoPool, txs) + PRUNE_EPSILON < bestProfit.get()) {
+                return null;
+            }
+
+            List<Transaction> result = new ArrayList<Transaction>();
+            Level level = expandLevel(utxoPool, txs, conflictIndex, result, true);
+            List<Transaction> nextValidTxs = level.nextValidTxs;
+
+            //No conflicting transaction left, this is a complete selection
+            if (nextValidTxs.isEmpty()) {
+                bestProfit.accumulate(baseProfit + level.profit);
+                return new Response(level.profit, result);
+            }
+
+            List<Double> localProfits = new ArrayList<Double>();
+            List<SearchTask> tasks = new ArrayList<SearchTask>();
+            for (int index = 0; index < nextValidTxs.size(); index++) {
+                UTXOPool localUtxoPool = new UTXOPool(utxoPool);
+                Transaction tx = nextValidTxs.get(index);
+                double localProfit = getProfitForTransaction(localUtxoPool, tx);
+                applyIntoThePool(localUtxoPool, tx);
+
+                List<Transaction> localTxs = new ArrayList<Transaction>(nextValidTxs);
+                localTxs.remove(index);
+                localTxs.addAll(level.nextInValidTxs);
+
+                localProfits.add(localProfit);
+                tasks.add(new SearchTask(localUtxoPool, localTxs,
+                        baseProfit + level.profit + localProfit, conflictIndex, bestProfit));
+            }
+
+            List<Response> responses = new ArrayList<Response>();
+            if (txs.size() < SEQUENTIAL_THRESHOLD) {
+                for (SearchTask task : tasks) {
+                    responses.add(task.compute());
+                }
+            } else {
+                invokeAll(tasks);
+                for (SearchTask task : tasks) {
+                    responses.add(task.join());
+                }
+            }
+
+            //Pick the first branch with the maximum profit, as the sequential search does
+            int maxProfitIndex = -1;
+            double maxProfitValue = 0.0;
+            for (int index = 0; index < responses.size(); index++) {
+                Response response = responses.get(index);
+                if (response == null) {
+                    continue;
+                }
+                double profit = response.profit + localProfits.get(index);
+                if (maxProfitIndex < 0 || profit > maxProfitValue) {
+                    maxProfitIndex = index;
+                    maxProfitValue = profit;
+                }
+            }
+
+            //Every branch was pruned
+            if (maxProfitIndex < 0) {
+                return null;
+            }
+
+            result.add(nextValidTxs.get(maxProfitIndex));
+            result.addAll(responses.get(maxProfitIndex).txs);
+            //Same order of additions as the sequential search, so that rounding breaks ties alike
+            double profit = level.profit + localProfits.get(maxProfitIndex);
+            profit += responses.get(maxProfitIndex).profit;
+            return new Response(profit, result);
+        }
+    }
+
+    private class SearchState {
+        SearchBudget budget;
+        ConflictIndex conflictIndex;
+        long nodes;
+        boolean stopped;
+        double bestProfit = Double.NEGATIVE_INFINITY;
+        List<Transaction> bestTxs = new ArrayList<Transaction>();
+
+        /**
+         * Highest upper bound of the fee of a branch left unexplored when the budget ran out
+         */
+        double openBound = Double.NEGATIVE_INFINITY;
+
+        public SearchState(SearchBudget budget, ConflictIndex conflictIndex) {
+            this.budget = budget;
+            this.conflictIndex = conflictIndex;
+        }
+
+        boolean shouldStop() {
+            if (!stopped && budget.isExhausted(nodes)) {
+                stopped = true;
+            }
+            return stopped;
+        }
+
+        void offer(double profit, List<Transaction> txs) {
+            if (profit > bestProfit) {
+                bestProfit = profit;
+                bestTxs = new ArrayList<Transaction>(txs);
+            }
+        }
+
+        void leaveOpen(double bound) {
+            openBound = Math.max(openBound, bound);
+        }
+    }
+
+    private class Level {
+        double profit;
+        List<Transaction> nextValidTxs;
+        List<Transaction> nextInValidTxs;
+
+        public Level(double profit, List<Transaction> nextValidTxs, List<Transaction> nextInValidTxs) {
+            this.profit = profit;
+            this.nextValidTxs = nextValidTxs;
+            this.nextInValidTxs = nextInValidTxs;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,615 @@
+package scrooge_coin;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Replays a generated multi-epoch transaction history through the handlers and reports throughput,
+ * per-epoch latency percentiles, peak heap and GC time for each handler mode. It also checks that
+ * the modes agree: the {@link TxHandler} modes must accept the same transactions, the
+ * {@link MaxFeeTxHandler} modes the same transactions (sequential and parallel) or the same fee
+ * (anytime search without budget).
+ * <p>
+ * The history is generated from a seed, so a run is repeatable. Each epoch mixes ordinary
+ * payments, chains spending outputs created earlier in the same epoch, double spends, invalid
+ * signatures and overspending transactions, with fees drawn from a skewed distribution.
+ * <p>
+ * Before anything is measured, every mode replays the history {@code --warmup} times (1 by
+ * default) with the results discarded, so that JIT compilation does not weigh on whichever mode
+ * happens to run first.
+ * <p>
+ * Usage: {@code ReplayTool [--epochs N] [--txs N] [--double-spends N] [--seed N] [--warmup N]
+ * [--no-maxfee]}
+ */
+public class ReplayTool {
+
+    private static final int USERS = 8;
+    private static final int GENESIS_OUTPUTS = 256;
+
+    /**
+     * Discarded and measured runs of the hashing comparison
+     */
+    private static final int HASH_WARMUP = 5;
+    private static final int HASH_REPETITIONS = 21;
+
+    public static void main(String[] args) throws Exception {
+        int epochs = 20;
+        int txsPerEpoch = 100;
+        int doubleSpends = 2;
+        long seed = 1;
+        int warmup = 1;
+        boolean maxFee = true;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--epochs")) {
+                epochs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--txs")) {
+                txsPerEpoch = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--double-spends")) {
+                doubleSpends = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--seed")) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--warmup")) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--no-maxfee")) {
+                maxFee = false;
+            } else {
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        System.out.println("Generating " + epochs + " epochs of " + txsPerEpoch + " transactions, seed " + seed);
+        History history = new History(seed);
+        List<Transaction[]> txs = history.generate(epochs, txsPerEpoch, doubleSpends);
+
+        List<Mode> modes = new ArrayList<Mode>();
+        modes.add(new Mode("tx") {
+            List<Transaction[]> run(UTXOPool genesis, List<Transaction[]> epochs, long[] latencies) {
+                TxHandler handler = new TxHandler(genesis);
+                List<Transaction[]> results = new ArrayList<Transaction[]>();
+                for (int e = 0; e < epochs.size(); e++) {
+                    long start = System.nanoTime();
+                    results.add(handler.handleTxs(epochs.get(e)));
+                    latencies[e] = System.nanoTime() - start;
+                }
+                return results;
+            }
+        });
+        modes.add(new Mode("tx-batch") {
+            List<Transaction[]> run(UTXOPool genesis, List<Transaction[]> epochs, long[] latencies) {
+                TxHandler handler = new TxHandler(genesis);
+                List<Transaction[]> results = new ArrayList<Transaction[]>();
+                for (int e = 0; e < epochs.size(); e++) {
+                    long start = System.nanoTime();
+                    results.add(handler.handleTxs(EpochBatch.of(epochs.get(e))));
+                    latencies[e] = System.nanoTime() - start;
+                }
+                return results;
+            }
+        });
+        modes.add(new Mode("tx-prehash") {
+            List<Transaction[]> run(UTXOPool genesis, List<Transaction[]> epochs, long[] latencies) {
+                TxHandler handler = new TxHandler(genesis);
+                handler.setHashService(new TxHashService());
+                List<Transaction[]> results = new ArrayList<Transaction[]>();
+                for (int e = 0; e < epochs.size(); e++) {
+                    long start = System.nanoTime();
+                    results.add(handler.handleTxs(epochs.get(e)));
+                    latencies[e] = System.nanoTime() - start;
+                }
+                return results;
+            }
+        });
+        modes.add(new Mode("tx-waves") {
+            List<Transaction[]> run(UTXOPool genesis, List<Transaction[]> epochs, long[] latencies) {
+                TxHandler handler = new TxHandler(genesis, ForkJoinPool.commonPool());
+                List<Transaction[]> results = new ArrayList<Transaction[]>();
+                for (int e = 0; e < epochs.size(); e++) {
+                    long start = System.nanoTime();
+                    results.add(handler.handleTxs(epochs.get(e)));
+                    latencies[e] = System.nanoTime() - start;
+                }
+                return results;
+            }
+        });
+        modes.add(new Mode("tx-pipeline") {
+            List<Transaction[]> run(UTXOPool genesis, final List<Transaction[]> epochs, long[] latencies)
+                    throws Exception {
+                final EpochPipeline<Transaction[]> pipeline = new EpochPipeline<Transaction[]>(
+                        new TxHandler(genesis), new EpochPipeline.Decoder<Transaction[]>() {
+                    public Transaction[] decode(Transaction[] raw) {
+                        return raw;
+                    }
+                }, 4, null, 1);
+                final long[] submitted = new long[epochs.size()];
+                pipeline.start();
+                Thread producer = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            for (int e = 0; e < epochs.size(); e++) {
+                                submitted[e] = System.nanoTime();
+                                pipeline.submit(epochs.get(e));
+                            }
+                            pipeline.close();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }, "replay-producer");
+                producer.start();
+
+                List<Transaction[]> results = new ArrayList<Transaction[]>();
+                EpochPipeline.EpochResult result;
+                while ((result = pipeline.take()) != null) {
+                    if (result.getError() != null) {
+                        throw result.getError();
+                    }
+                    int e = (int) result.getSequence();
+                    latencies[e] = System.nanoTime() - submitted[e];
+                    results.add(result.getAcceptedTxs());
+                }
+                producer.join();
+                return results;
+            }
+        });
+        if (maxFee) {
+            modes.add(new Mode("maxfee") {
+                List<Transaction[]> run(UTXOPool genesis, List<Transaction[]> epochs, long[] latencies) {
+                    MaxFeeTxHandler handler = new MaxFeeTxHandler(genesis);
+                    List<Transaction[]> results = new ArrayList<Transaction[]>();
+                    for (int e = 0; e < epochs.size(); e++) {
+                        long start = System.nanoTime();
+                        results.add(handler.handleTxs(epochs.get(e)));
+                        latencies[e] = System.nanoTime() - start;
+                    }
+                    return results;
+                }
+            });
+            modes.add(new Mode("maxfee-parallel") {
+                List<Transaction[]> run(UTXOPool genesis, List<Transaction[]> epochs, long[] latencies) {
+                    MaxFeeTxHandler handler = new MaxFeeTxHandler(genesis);
+                    List<Transaction[]> results = new ArrayList<Transaction[]>();
+                    for (int e = 0; e < epochs.size(); e++) {
+                        long start = System.nanoTime();
+                        results.add(handler.handleTxsParallel(epochs.get(e)));
+                        latencies[e] = System.nanoTime() - start;
+                    }
+                    return results;
+                }
+            });
+            modes.add(new Mode("maxfee-prehash") {
+                List<Transaction[]> run(UTXOPool genesis, List<Transaction[]> epochs, long[] latencies) {
+                    MaxFeeTxHandler handler = new MaxFeeTxHandler(genesis);
+                    handler.setHashService(new TxHashService());
+                    List<Transaction[]> results = new ArrayList<Transaction[]>();
+                    for (int e = 0; e < epochs.size(); e++) {
+                        long start = System.nanoTime();
+                        results.add(handler.handleTxs(epochs.get(e)));
+                        latencies[e] = System.nanoTime() - start;
+                    }
+                    return results;
+                }
+            });
+            modes.add(new Mode("maxfee-anytime") {
+                List<Transaction[]> run(UTXOPool genesis, List<Transaction[]> epochs, long[] latencies) {
+                    MaxFeeTxHandler handler = new MaxFeeTxHandler(genesis);
+                    List<Transaction[]> results = new ArrayList<Transaction[]>();
+                    for (int e = 0; e < epochs.size(); e++) {
+                        long start = System.nanoTime();
+                        results.add(handler.handleTxs(epochs.get(e), SearchBudget.unlimited()).getTxs());
+                        latencies[e] = System.nanoTime() - start;
+                    }
+                    return results;
+                }
+            });
+        }
+
+        for (int round = 0; round < warmup; round++) {
+            System.out.println("Warm-up round " + (round + 1) + " of " + warmup);
+            for (Mode mode : modes) {
+                mode.run(history.genesis, txs, new long[txs.size()]);
+            }
+        }
+
+        System.out.println(String.format("%-16s %10s %10s %10s %10s %10s %10s %8s",
+                "mode", "accepted", "tx/s", "p50 ms", "p90 ms", "p99 ms", "heap MB", "gc ms"));
+        boolean consistent = true;
+        List<Transaction[]> txReference = null;
+        List<Transaction[]> maxFeeReference = null;
+        for (Mode mode : modes) {
+            List<Transaction[]> results = mode.measure(history.genesis, txs);
+            if (mode.name.startsWith("maxfee")) {
+                if (maxFeeReference == null) {
+                    maxFeeReference = results;
+                } else if (mode.name.equals("maxfee-anytime")) {
+                    consistent &= check(mode.name, sameFees(history.genesis, maxFeeReference, results));
+                } else {
+                    consistent &= check(mode.name, sameTxs(maxFeeReference, results));
+                }
+            } else {
+                if (txReference == null) {
+                    txReference = results;
+                } else {
+                    consistent &= check(mode.name, sameTxs(txReference, results));
+                }
+            }
+        }
+        consistent &= check("hashing", compareHashing(txs));
+        System.out.println(consistent ? "All modes consistent" : "MODES DISAGREE");
+        if (!consistent) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Times hashing every transaction one by one with {@link Transaction#finalize()} against
+     * {@link TxHashService#hashAll(Transaction[])} per epoch, and prints the median rate of each
+     * over {@link #HASH_REPETITIONS} runs, after {@link #HASH_WARMUP} discarded ones
+     *
+     * @return whether both give the same ids
+     */
+    private static boolean compareHashing(List<Transaction[]> epochs) {
+        TxHashService hashService = new TxHashService();
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        int total = 0;
+        for (Transaction[] epoch : epochs) {
+            for (Transaction tx : epoch) {
+                tx.finalize();
+                hashes.add(tx.getHash());
+            }
+            total += epoch.length;
+        }
+
+        long[] finalizeNanos = new long[HASH_REPETITIONS];
+        long[] hashAllNanos = new long[HASH_REPETITIONS];
+        for (int run = -HASH_WARMUP; run < HASH_REPETITIONS; run++) {
+            long start = System.nanoTime();
+            for (Transaction[] epoch : epochs) {
+                for (Transaction tx : epoch) {
+                    tx.finalize();
+                }
+            }
+            long finalizeRun = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (Transaction[] epoch : epochs) {
+                hashService.hashAll(epoch);
+            }
+            long hashAllRun = System.nanoTime() - start;
+            if (run >= 0) {
+                finalizeNanos[run] = finalizeRun;
+                hashAllNanos[run] = hashAllRun;
+            }
+        }
+        Arrays.sort(finalizeNanos);
+        Arrays.sort(hashAllNanos);
+
+        System.out.println(String.format("%-16s %10.0f tx/s finalize, %.0f tx/s hashAll (median of %d runs, %d threads)",
+                "hashing", total / (percentile(finalizeNanos, 50) / 1e9), total / (percentile(hashAllNanos, 50) / 1e9),
+                HASH_REPETITIONS, ForkJoinPool.commonPool().getParallelism()));
+        int index = 0;
+        for (Transaction[] epoch : epochs) {
+            for (Transaction tx : epoch) {
+                if (!Arrays.equals(hashes.get(index++), tx.getHash())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean check(String mode, boolean same) {
+        if (!same) {
+            System.out.println(mode + ": results differ from the reference mode");
+        }
+        return same;
+    }
+
+    /**
+     * @return true if both runs accepted transactions with the same hashes in the same order
+     */
+    private static boolean sameTxs(List<Transaction[]> expected, List<Transaction[]> actual) {
+        if (expected.size() != actual.size()) {
+            return false;
+        }
+        for (int e = 0; e < expected.size(); e++) {
+            Transaction[] x = expected.get(e);
+            Transaction[] y = actual.get(e);
+            if (x.length != y.length) {
+                return false;
+            }
+            for (int index = 0; index < x.length; index++) {
+                if (!Arrays.equals(x[index].getHash(), y[index].getHash())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if both runs collected the same fee in every epoch
+     */
+    private static boolean sameFees(UTXOPool genesis, List<Transaction[]> expected, List<Transaction[]> actual) {
+        UTXOPool expectedPool = new UTXOPool(genesis);
+        UTXOPool actualPool = new UTXOPool(genesis);
+        for (int e = 0; e < expected.size(); e++) {
+            if (Math.abs(applyFee(expectedPool, expected.get(e)) - applyFee(actualPool, actual.get(e))) > 1e-9) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies {@code txs}, which are valid in order, to the pool
+     *
+     * @return total fee of {@code txs}
+     */
+    private static double applyFee(UTXOPool utxoPool, Transaction[] txs) {
+        double fee = 0;
+        for (Transaction tx : txs) {
+            for (Transaction.Input input : tx.getInputs()) {
+                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+                fee += utxoPool.getTxOutput(utxo).value;
+                utxoPool.removeUTXO(utxo);
+            }
+            for (int index = 0; index < tx.numOutputs(); index++) {
+                fee -= tx.getOutput(index).value;
+                utxoPool.addUTXO(new UTXO(tx.getHash(), index), tx.getOutput(index));
+            }
+        }
+        return fee;
+    }
+
+    private abstract static class Mode {
+        final String name;
+
+        Mode(String name) {
+            this.name = name;
+        }
+
+        abstract List<Transaction[]> run(UTXOPool genesis, List<Transaction[]> epochs, long[] latencies)
+                throws Exception;
+
+        /**
+         * Runs this mode and prints its report line
+         */
+        List<Transaction[]> measure(UTXOPool genesis, List<Transaction[]> epochs) throws Exception {
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            long gcStart = getGcMillis();
+            long[] latencies = new long[epochs.size()];
+            long start = System.nanoTime();
+            List<Transaction[]> results = run(genesis, epochs, latencies);
+            long elapsed = System.nanoTime() - start;
+            long gcMillis = getGcMillis() - gcStart;
+
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+            int total = 0;
+            int accepted = 0;
+            for (int e = 0; e < epochs.size(); e++) {
+                total += epochs.get(e).length;
+                accepted += results.get(e).length;
+            }
+            Arrays.sort(latencies);
+            System.out.println(String.format("%-16s %10d %10.0f %10.2f %10.2f %10.2f %10.1f %8d",
+                    name, accepted, total / (elapsed / 1e9), percentile(latencies, 50) / 1e6,
+                    percentile(latencies, 90) / 1e6, percentile(latencies, 99) / 1e6,
+                    peakHeap / (1024.0 * 1024.0), gcMillis));
+            return results;
+        }
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Generates the genesis pool and the epochs. It tracks the outputs its valid transactions
+     * create, assuming they get accepted, so that later transactions can spend them.
+     */
+    private static class History {
+        final Random random;
+        final KeyPair[] users = new KeyPair[USERS];
+        final UTXOPool genesis = new UTXOPool();
+
+        /**
+         * Outputs the generator considers unspent, with their value and owner
+         */
+        final List<UTXO> spendable = new ArrayList<UTXO>();
+        final List<Double> spendableValue = new ArrayList<Double>();
+        final List<Integer> spendableOwner = new ArrayList<Integer>();
+
+        /**
+         * Owner of the output spent by the first input of each payment
+         */
+        final IdentityHashMap<Transaction, Integer> firstInputOwner = new IdentityHashMap<Transaction, Integer>();
+
+        History(long seed) throws Exception {
+            random = new Random(seed);
+            SecureRandom keyRandom = SecureRandom.getInstance("SHA1PRNG");
+            keyRandom.setSeed(seed);
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+            keyGen.initialize(1024, keyRandom);
+            for (int u = 0; u < USERS; u++) {
+                users[u] = keyGen.generateKeyPair();
+            }
+
+            Transaction coinbase = new Transaction();
+            for (int index = 0; index < GENESIS_OUTPUTS; index++) {
+                coinbase.addOutput(10 + random.nextInt(90), users[index % USERS].getPublic());
+            }
+            coinbase.finalize();
+            for (int index = 0; index < GENESIS_OUTPUTS; index++) {
+                UTXO utxo = new UTXO(coinbase.getHash(), index);
+                genesis.addUTXO(utxo, coinbase.getOutput(index));
+                track(utxo, coinbase.getOutput(index).value, index % USERS);
+            }
+        }
+
+        List<Transaction[]> generate(int epochs, int txsPerEpoch, int doubleSpends) throws Exception {
+            List<Transaction[]> history = new ArrayList<Transaction[]>();
+            for (int e = 0; e < epochs; e++) {
+                List<Transaction> epoch = new ArrayList<Transaction>();
+                List<Transaction> payments = new ArrayList<Transaction>();
+                for (int t = 0; t < txsPerEpoch - doubleSpends && !spendable.isEmpty(); t++) {
+                    int kind = random.nextInt(20);
+                    if (kind == 0) {
+                        epoch.add(invalidSignature());
+                    } else if (kind == 1) {
+                        epoch.add(overspend());
+                    } else {
+                        Transaction tx = payment(kind < 6);
+                        payments.add(tx);
+                        epoch.add(tx);
+                    }
+                }
+                //Double spends of outputs spent by earlier payments of the epoch
+                for (int d = 0; d < doubleSpends && !payments.isEmpty(); d++) {
+                    Transaction victim = payments.get(random.nextInt(payments.size()));
+                    epoch.add(doubleSpend(victim));
+                }
+                Transaction[] txs = epoch.toArray(new Transaction[epoch.size()]);
+                //Proposals arrive unordered
+                for (int index = txs.length - 1; index > 0; index--) {
+                    int other = random.nextInt(index + 1);
+                    Transaction tmp = txs[index];
+                    txs[index] = txs[other];
+                    txs[other] = tmp;
+                }
+                history.add(txs);
+            }
+            return history;
+        }
+
+        /**
+         * @param chain prefer the most recently created output, which is often from this epoch
+         */
+        Transaction payment(boolean chain) throws Exception {
+            int numInputs = 1 + (random.nextInt(4) == 0 ? 1 : 0);
+            Transaction tx = new Transaction();
+            List<Integer> owners = new ArrayList<Integer>();
+            double inValue = 0;
+            for (int i = 0; i < numInputs && !spendable.isEmpty(); i++) {
+                int pick = chain && i == 0 ? spendable.size() - 1 : random.nextInt(spendable.size());
+                UTXO utxo = spendable.get(pick);
+                tx.addInput(utxo.getTxHash(), utxo.getIndex());
+                inValue += spendableValue.get(pick);
+                owners.add(spendableOwner.get(pick));
+                untrack(pick);
+            }
+            //Skewed fee distribution: mostly small, sometimes large
+            double u = random.nextDouble();
+            double fee = inValue * 0.2 * u * u * u;
+            int numOutputs = 1 + random.nextInt(3);
+            double outValue = inValue - fee;
+            int[] outOwners = new int[numOutputs];
+            for (int o = 0; o < numOutputs; o++) {
+                outOwners[o] = random.nextInt(USERS);
+                tx.addOutput(outValue / numOutputs, users[outOwners[o]].getPublic());
+            }
+            for (int i = 0; i < owners.size(); i++) {
+                tx.addSignature(sign(users[owners.get(i)].getPrivate(), tx.getRawDataToSign(i)), i);
+            }
+            tx.finalize();
+            firstInputOwner.put(tx, owners.get(0));
+            for (int o = 0; o < numOutputs; o++) {
+                track(new UTXO(tx.getHash(), o), tx.getOutput(o).value, outOwners[o]);
+            }
+            return tx;
+        }
+
+        /**
+         * @return a transaction spending the first input of {@code victim} again, with a random fee
+         */
+        Transaction doubleSpend(Transaction victim) throws Exception {
+            Transaction.Input input = victim.getInput(0);
+            int owner = firstInputOwner.get(victim);
+            Transaction tx = new Transaction();
+            tx.addInput(input.prevTxHash, input.outputIndex);
+            tx.addOutput(random.nextDouble(), users[random.nextInt(USERS)].getPublic());
+            tx.addSignature(sign(users[owner].getPrivate(), tx.getRawDataToSign(0)), 0);
+            tx.finalize();
+            return tx;
+        }
+
+        Transaction invalidSignature() throws Exception {
+            int pick = random.nextInt(spendable.size());
+            UTXO utxo = spendable.get(pick);
+            Transaction tx = new Transaction();
+            tx.addInput(utxo.getTxHash(), utxo.getIndex());
+            tx.addOutput(spendableValue.get(pick) / 2, users[random.nextInt(USERS)].getPublic());
+            int wrongOwner = (spendableOwner.get(pick) + 1) % USERS;
+            tx.addSignature(sign(users[wrongOwner].getPrivate(), tx.getRawDataToSign(0)), 0);
+            tx.finalize();
+            return tx;
+        }
+
+        Transaction overspend() throws Exception {
+            int pick = random.nextInt(spendable.size());
+            UTXO utxo = spendable.get(pick);
+            Transaction tx = new Transaction();
+            tx.addInput(utxo.getTxHash(), utxo.getIndex());
+            tx.addOutput(spendableValue.get(pick) + 1, users[random.nextInt(USERS)].getPublic());
+            tx.addSignature(sign(users[spendableOwner.get(pick)].getPrivate(), tx.getRawDataToSign(0)), 0);
+            tx.finalize();
+            return tx;
+        }
+
+        void track(UTXO utxo, double value, int owner) {
+            spendable.add(utxo);
+            spendableValue.add(value);
+            spendableOwner.add(owner);
+        }
+
+        void untrack(int index) {
+            int last = spendable.size() - 1;
+            spendable.set(index, spendable.get(last));
+            spendableValue.set(index, spendableValue.get(last));
+            spendableOwner.set(index, spendableOwner.get(last));
+            spendable.remove(last);
+            spendableValue.remove(last);
+            spendableOwner.remove(last);
+        }
+
+    }
+
+    private static byte[] sign(PrivateKey key, byte[] data) throws Exception {
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(key);
+        signature.update(data);
+        return signature.sign();
+    }
+}
@@ -0,0 +1,81 @@
+package scrooge_coin;
+
+public class SearchBudget {
+
+    /**
+     * Absolute {@code System.nanoTime()} after which the search must stop, or {@code Long.MAX_VALUE}
+     * if there is no time limit
+     */
+    private final long deadlineNanos;
+
+    /**
+     * Maximum number of search nodes that may be expanded, or {@code Long.MAX_VALUE} if there is no
+     * node limit
+     */
+    private final long maxNodes;
+
+    /**
+     * Set by {@link #cancel()}, possibly from another thread
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a new budget that expires {@code timeoutMillis} milliseconds from now or after
+     * {@code maxNodes} search nodes, whichever comes first. A non-positive value disables the
+     * corresponding limit.
+     */
+    public SearchBudget(long timeoutMillis, long maxNodes) {
+        if (timeoutMillis > 0) {
+            this.deadlineNanos = System.nanoTime() + timeoutMillis * 1000000L;
+        } else {
+            this.deadlineNanos = Long.MAX_VALUE;
+        }
+        this.maxNodes = maxNodes > 0 ? maxNodes : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return a budget without time or node limits; it can still be cancelled
+     */
+    public static SearchBudget unlimited() {
+        return new SearchBudget(0, 0);
+    }
+
+    /**
+     * @return a budget that expires {@code timeoutMillis} milliseconds from now
+     */
+    public static SearchBudget ofMillis(long timeoutMillis) {
+        return new SearchBudget(timeoutMillis, 0);
+    }
+
+    /**
+     * @return a budget that expires after {@code maxNodes} search nodes
+     */
+    public static SearchBudget ofNodes(long maxNodes) {
+        return new SearchBudget(0, maxNodes);
+    }
+
+    /**
+     * Asks the search using this budget to stop as soon as possible and return the best solution
+     * found so far
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return true if {@link #cancel()} has been called
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if the search must stop after having expanded {@code nodes} search nodes
+     */
+    boolean isExhausted(long nodes) {
+        if (cancelled || nodes >= maxNodes) {
+            return true;
+        }
+        return deadlineNanos != Long.MAX_VALUE && System.nanoTime() - deadlineNanos >= 0;
+    }
+}
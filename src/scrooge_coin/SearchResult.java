@@ -0,0 +1,86 @@
+package scrooge_coin;
+
+public class SearchResult {
+
+    /**
+     * The mutually valid transactions of the best selection found, in the order they were applied
+     */
+    private final Transaction[] txs;
+
+    /**
+     * Total fee collected by {@code txs}
+     */
+    private final double fee;
+
+    /**
+     * Upper bound of the fee of any selection in the search space, at least {@code fee}
+     */
+    private final double upperBound;
+
+    /**
+     * True if the search space was explored completely
+     */
+    private final boolean complete;
+
+    /**
+     * Number of search nodes expanded
+     */
+    private final long nodes;
+
+    public SearchResult(Transaction[] txs, double fee, double upperBound, boolean complete, long nodes) {
+        this.txs = txs;
+        this.fee = fee;
+        this.upperBound = upperBound;
+        this.complete = complete;
+        this.nodes = nodes;
+    }
+
+    /**
+     * @return the accepted transactions
+     */
+    public Transaction[] getTxs() {
+        return txs;
+    }
+
+    /**
+     * @return the total fee of the accepted transactions
+     */
+    public double getFee() {
+        return fee;
+    }
+
+    /**
+     * @return an upper bound of the best fee in the search space of
+     * {@link MaxFeeTxHandler#handleTxs(Transaction[])}: the fee itself if the search finished,
+     * else the highest bound of the branches it left unexplored
+     */
+    public double getUpperBound() {
+        return upperBound;
+    }
+
+    /**
+     * @return how much more fee the best selection of the search space may collect than the
+     * returned one; 0 if the returned one is proven to be the best
+     */
+    public double getGap() {
+        return Math.max(0, upperBound - fee);
+    }
+
+    /**
+     * @return true if the search finished within its budget. The fee is then the best of the
+     * search space of {@link MaxFeeTxHandler#handleTxs(Transaction[])}, the same fee that method
+     * returns. This is not a proof that no other selection has a higher fee: that search applies
+     * a transaction without branching when no other currently valid transaction conflicts with
+     * it, even if a transaction which only becomes valid later spends the same output.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the number of search nodes expanded before the search finished or was stopped
+     */
+    public long getNodes() {
+        return nodes;
+    }
+}
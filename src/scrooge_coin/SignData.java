@@ -0,0 +1,92 @@
+package scrooge_coin;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+
+/**
+ * Digests of the data signed by each input of a transaction, see
+ * {@link Transaction#getRawDataToSign(int)}. That data is the input's outpoint followed by all
+ * outputs; the outputs part is encoded once per transaction here instead of once per input, and
+ * each input's digest is computed from its 36 or so bytes of outpoint and the shared encoding.
+ * <p>
+ * SHA-256 hashes its input front to back, so the digest state after the shared outputs cannot be
+ * reused behind different outpoints; what is shared is the encoding, including every
+ * {@code PublicKey.getEncoded()} call, and the verification then works on the digest alone.
+ */
+public class SignData {
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException x) {
+                throw new IllegalStateException(x);
+            }
+        }
+    };
+
+    private final Transaction tx;
+
+    /**
+     * Encoding of all outputs, the common suffix of the data signed by every input
+     */
+    private final byte[] outputsData;
+
+    /**
+     * Digest of each input's signed data, computed on first use
+     */
+    private final byte[][] digests;
+
+    public SignData(Transaction tx) {
+        this.tx = tx;
+        this.digests = new byte[tx.numInputs()][];
+
+        int length = 0;
+        byte[][] addresses = new byte[tx.numOutputs()][];
+        for (int index = 0; index < addresses.length; index++) {
+            addresses[index] = tx.getOutput(index).address.getEncoded();
+            length += Double.SIZE / 8 + addresses[index].length;
+        }
+        ByteBuffer b = ByteBuffer.allocate(length);
+        for (int index = 0; index < addresses.length; index++) {
+            b.putDouble(tx.getOutput(index).value);
+            b.put(addresses[index]);
+        }
+        this.outputsData = b.array();
+    }
+
+    /**
+     * @return the SHA-256 digest of {@code tx.getRawDataToSign(index)}
+     */
+    public byte[] getDigest(int index) {
+        byte[] digest = digests[index];
+        if (digest == null) {
+            Transaction.Input in = tx.getInput(index);
+            MessageDigest md = SHA256.get();
+            if (in.prevTxHash != null) {
+                md.update(in.prevTxHash);
+            }
+            md.update(ByteBuffer.allocate(Integer.SIZE / 8).putInt(in.outputIndex).array());
+            md.update(outputsData);
+            digest = md.digest();
+            digests[index] = digest;
+        }
+        return digest;
+    }
+
+    /**
+     * @return true if the signature of input {@code index} is valid under {@code address}, with
+     * the same result as {@link Crypto#verifySignature(PublicKey, byte[], byte[])} on
+     * {@code tx.getRawDataToSign(index)}
+     */
+    public boolean verify(int index, PublicKey address) {
+        byte[] signature = tx.getInput(index).signature;
+        if (address instanceof RSAPublicKey) {
+            return Crypto.verifySignatureOfDigest(address, getDigest(index), signature);
+        }
+        return Crypto.verifySignature(address, tx.getRawDataToSign(index), signature);
+    }
+}
@@ -0,0 +1,201 @@
+package scrooge_coin;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Two-tier UTXOPool: a bounded in-memory cache of recently used UTXOs in front of a
+ * {@link ColdUTXOStore} on disk. The cache evicts the least recently used entry once it holds
+ * {@code hotCapacity} UTXOs. Changes are buffered in memory and written back to the cold store in
+ * one batch by {@link #flush()}, which {@link TxHandler} calls at the end of every epoch, so the
+ * heap holds the hot UTXOs plus the changes of a single epoch however large the ledger grows.
+ * A miss for a UTXO which is not stored at all is answered by the cold store's in-memory index
+ * without reading from disk, which is why {@link UTXOPool#enableFilter()} has no use here. That
+ * index takes 16 to 32 bytes per cold UTXO, see {@link ColdUTXOStore}.
+ * <p>
+ * Copying a tiered pool with {@link UTXOPool#UTXOPool(UTXOPool)} loads every UTXO into a plain
+ * in-memory pool; use {@link TxHandler#TxHandler(TieredUTXOPool)} to handle epochs on the pool
+ * itself.
+ */
+public class TieredUTXOPool extends UTXOPool {
+
+    private final ColdUTXOStore coldStore;
+
+    /**
+     * Recently used UTXOs, in access order
+     */
+    private final LinkedHashMap<UTXO, Transaction.Output> hot;
+
+    /**
+     * UTXOs added since the last flush
+     */
+    private final HashMap<UTXO, Transaction.Output> pendingPuts;
+
+    /**
+     * UTXOs removed since the last flush, which may still be in the cold store
+     */
+    private final HashSet<UTXO> pendingDeletes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writtenBack;
+
+    /**
+     * Creates a pool backed by {@code coldStore}, caching at most {@code hotCapacity} UTXOs
+     */
+    public TieredUTXOPool(ColdUTXOStore coldStore, final int hotCapacity) {
+        this.coldStore = coldStore;
+        this.hot = new LinkedHashMap<UTXO, Transaction.Output>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<UTXO, Transaction.Output> eldest) {
+                // Unflushed entries stay in pendingPuts, so nothing is lost
+                if (size() > hotCapacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.pendingPuts = new HashMap<UTXO, Transaction.Output>();
+        this.pendingDeletes = new HashSet<UTXO>();
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        pendingDeletes.remove(utxo);
+        pendingPuts.put(utxo, txOut);
+        hot.put(utxo, txOut);
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        hot.remove(utxo);
+        try {
+            // A UTXO added since the last flush is usually not in the cold store at all
+            if (pendingPuts.remove(utxo) != null && !coldStore.mayContain(utxo)) {
+                return;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // Copy a possibly borrowed key before keeping it
+        pendingDeletes.add(new UTXO(utxo.getTxHash(), utxo.getIndex()));
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        Transaction.Output output = hot.get(ut);
+        if (output != null) {
+            hits++;
+            return output;
+        }
+        misses++;
+        if (pendingDeletes.contains(ut)) {
+            return null;
+        }
+        output = pendingPuts.get(ut);
+        if (output == null) {
+            try {
+                output = coldStore.get(ut);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (output != null) {
+            // Copy a possibly borrowed lookup key before caching it
+            hot.put(new UTXO(ut.getTxHash(), ut.getIndex()), output);
+        }
+        return output;
+    }
+
+    /**
+     * Looks {@code utxo} up like {@link #getTxOutput(UTXO)}, counted as one lookup. Callers which
+     * need the output as well should only call {@link #getTxOutput(UTXO)}.
+     */
+    @Override
+    public boolean contains(UTXO utxo) {
+        return getTxOutput(utxo) != null;
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
+        try {
+            for (UTXO ut : coldStore.getAllUTXO()) {
+                if (!pendingDeletes.contains(ut) && !pendingPuts.containsKey(ut)) {
+                    allUTXO.add(ut);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        allUTXO.addAll(pendingPuts.keySet());
+        return allUTXO;
+    }
+
+    /**
+     * Writes the changes made since the last flush to the cold store in one batch
+     */
+    @Override
+    public void flush() {
+        if (pendingPuts.isEmpty() && pendingDeletes.isEmpty()) {
+            return;
+        }
+        try {
+            coldStore.write(pendingDeletes, pendingPuts);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        writtenBack += pendingPuts.size() + pendingDeletes.size();
+        pendingPuts.clear();
+        pendingDeletes.clear();
+    }
+
+    /**
+     * @return the cold store, which holds every UTXO once the pool is flushed
+     */
+    ColdUTXOStore getColdStore() {
+        return coldStore;
+    }
+
+    /**
+     * @return the number of lookups answered by the in-memory cache, counting each call of
+     * {@link #getTxOutput(UTXO)} or {@link #contains(UTXO)} once
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups which missed the in-memory cache
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of UTXOs evicted from the in-memory cache
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of additions and removals written back to the cold store
+     */
+    public long getWrittenBack() {
+        return writtenBack;
+    }
+
+    /**
+     * @return the number of UTXOs currently cached in memory
+     */
+    public int getHotSize() {
+        return hot.size();
+    }
+}
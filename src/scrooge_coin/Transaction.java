@@ -1,8 +1,6 @@
 package scrooge_coin;
 
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -15,6 +13,11 @@ public class Transaction {
     private byte[] hash;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
+    /**
+     * inputs released by {@link #reset()}, reused by the next additions. Outputs are not reused,
+     * since the ones of an accepted transaction live on in the UTXO pool.
+     */
+    private ArrayList<Input> spareInputs;
     public Transaction() {
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
@@ -26,13 +29,48 @@ public class Transaction {
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
-        Input in = new Input(prevTxHash, outputIndex);
+        if (spareInputs == null || spareInputs.isEmpty()) {
+            inputs.add(new Input(prevTxHash, outputIndex));
+            return;
+        }
+        Input in = spareInputs.remove(spareInputs.size() - 1);
+        in.reuse(prevTxHash == null ? null : Arrays.copyOf(prevTxHash, prevTxHash.length), outputIndex);
+        inputs.add(in);
+    }
+
+    /**
+     * Like {@link #addInput(byte[], int)}, but keeps a reference to {@code prevTxHash} instead of
+     * copying it. The caller must not modify the array while this transaction uses it.
+     */
+    public void addBorrowedInput(byte[] prevTxHash, int outputIndex) {
+        Input in;
+        if (spareInputs == null || spareInputs.isEmpty()) {
+            in = new Input(null, outputIndex);
+        } else {
+            in = spareInputs.remove(spareInputs.size() - 1);
+        }
+        in.reuse(prevTxHash, outputIndex);
         inputs.add(in);
     }
 
     public void addOutput(double value, PublicKey address) {
-        Output op = new Output(value, address);
-        outputs.add(op);
+        outputs.add(new Output(value, address));
+    }
+
+    /**
+     * Clears the hash, inputs and outputs so that this transaction can be built again. The removed
+     * Input objects are kept and reused by the next additions, so nobody else may still hold them,
+     * e.g. a copy made with {@link #Transaction(Transaction)}. Outputs are left to whoever holds
+     * them, such as a UTXO pool.
+     */
+    public void reset() {
+        hash = null;
+        if (spareInputs == null) {
+            spareInputs = new ArrayList<Input>(inputs.size());
+        }
+        spareInputs.addAll(inputs);
+        inputs.clear();
+        outputs.clear();
     }
 
     public void removeInput(int index) {
@@ -42,7 +80,7 @@ public class Transaction {
     public void removeInput(UTXO ut) {
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
+            UTXO u = new UTXO(in.prevTxHash, in.outputIndex, false);
             if (u.equals(ut)) {
                 inputs.remove(i);
                 return;
@@ -87,51 +125,51 @@ public class Transaction {
         inputs.get(index).addSignature(signature);
     }
 
+    /**
+     * Like {@link #addSignature(byte[], int)}, but keeps a reference to {@code signature} instead
+     * of copying it. The caller must not modify the array while this transaction uses it.
+     */
+    public void addBorrowedSignature(byte[] signature, int index) {
+        inputs.get(index).signature = signature;
+    }
+
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        //Size the buffer first instead of collecting boxed bytes
+        int length = 0;
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            if (in.prevTxHash != null)
+                length += in.prevTxHash.length;
+            length += Integer.SIZE / 8;
+            if (in.signature != null)
+                length += in.signature.length;
+        }
+        byte[][] addresses = new byte[outputs.size()][];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = outputs.get(i).address.getEncoded();
+            length += Double.SIZE / 8 + addresses[i].length;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
-            }
 
+        ByteBuffer b = ByteBuffer.allocate(length);
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                b.put(in.prevTxHash);
+            b.putInt(in.outputIndex);
+            if (in.signature != null)
+                b.put(in.signature);
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        for (int i = 0; i < addresses.length; i++) {
+            b.putDouble(outputs.get(i).value);
+            b.put(addresses[i]);
+        }
+        return b.array();
     }
 
+    /**
+     * Sets the hash to the SHA-256 of {@link #getRawTx()}. To hash many transactions, e.g. a whole
+     * epoch, see {@link TxHashService#hashAll(Transaction[])}.
+     */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        hash = TxHashService.SHA256.digest(getRawTx());
     }
 
     public byte[] getHash() {
@@ -194,6 +232,12 @@ public class Transaction {
             outputIndex = index;
         }
 
+        private void reuse(byte[] prevHash, int index) {
+            prevTxHash = prevHash;
+            outputIndex = index;
+            signature = null;
+        }
+
         public void addSignature(byte[] sig) {
             if (sig == null)
                 signature = null;
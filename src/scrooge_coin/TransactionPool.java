@@ -0,0 +1,59 @@
+package scrooge_coin;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded pool of recyclable {@link Transaction} objects for high rate ingestion. A transaction
+ * returned by {@link #acquire()} is empty and reuses the Input objects it had before being
+ * released, so building it again allocates only its outputs once the pool is warm. Combined with
+ * {@link Transaction#addBorrowedInput(byte[], int)} and
+ * {@link Transaction#addBorrowedSignature(byte[], int)}, hashes and signatures are not copied
+ * either.
+ * <p>
+ * A transaction may only be released once no handler or pipeline uses it anymore, i.e. after
+ * {@code handleTxs} returned or its {@link EpochPipeline} result was taken. This includes accepted
+ * transactions: their outputs stay in the UTXO pool and are never reused.
+ */
+public class TransactionPool {
+
+    private final ArrayDeque<Transaction> free;
+
+    private final int capacity;
+
+    /**
+     * Creates a pool keeping at most {@code capacity} released transactions
+     */
+    public TransactionPool(int capacity) {
+        this.free = new ArrayDeque<Transaction>(capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return an empty transaction, reused if one was released before
+     */
+    public synchronized Transaction acquire() {
+        Transaction tx = free.pollLast();
+        if (tx == null) {
+            return new Transaction();
+        }
+        return tx;
+    }
+
+    /**
+     * Resets {@code tx} and keeps it for a later {@link #acquire()}, unless the pool is full
+     */
+    public synchronized void release(Transaction tx) {
+        if (tx == null || free.size() >= capacity) {
+            return;
+        }
+        tx.reset();
+        free.addLast(tx);
+    }
+
+    /**
+     * @return the number of transactions ready to be acquired
+     */
+    public synchronized int size() {
+        return free.size();
+    }
+}
@@ -1,14 +1,53 @@
 package scrooge_coin;
 
+import java.io.File;
+import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 public class TxHandler {
 
+    /**
+     * Below this number of transactions a range is handled by a single task
+     */
+    private static final int RANGE_THRESHOLD = 16;
+
     private UTXOPool utxoPool;
 
+    /**
+     * Threads checking and applying transactions in waves, or null to handle them one by one
+     */
+    private ForkJoinPool applyPool;
+
+    /**
+     * Number of epochs handled, including the ones before the checkpoint this ledger started from
+     */
+    private long epoch;
+
+    /**
+     * Service hashing each epoch up front, or null if transactions are hashed as they are applied
+     */
+    private TxHashService hashService;
+
+    /**
+     * Signatures checked ahead of time, or null if every signature is checked here
+     */
+    private VerifiedSignatures verifiedSignatures;
+
+    /**
+     * Checkpoint being written from the pool under the current {@link CheckpointView}, or null
+     */
+    private Future<File> pendingCheckpoint;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
@@ -18,6 +57,126 @@ public class TxHandler {
         this.utxoPool = new UTXOPool(utxoPool);
     }
 
+    /**
+     * Creates a public ledger like {@link #TxHandler(UTXOPool)} which applies the accepted
+     * transactions of each epoch in parallel on {@code applyPool}. All transactions are hashed and
+     * checked against the pool and the outputs of the epoch in parallel first. A sequential pass
+     * then only tracks which UTXOs the accepted transactions spend and create, which decides the
+     * same accepted transactions as {@link #TxHandler(UTXOPool)}, and splits them into waves of
+     * transactions which share no spent or created UTXO. Each wave is applied in parallel to a
+     * {@link ConcurrentUTXOPool}, the only time the pool is changed.
+     */
+    public TxHandler(UTXOPool utxoPool, ForkJoinPool applyPool) {
+        this.utxoPool = new ConcurrentUTXOPool(utxoPool);
+        this.applyPool = applyPool;
+    }
+
+    /**
+     * Creates a public ledger which handles epochs on {@code utxoPool} itself instead of a copy,
+     * since copying would load every cold UTXO into memory. The pool is flushed at the end of
+     * every epoch.
+     */
+    public TxHandler(TieredUTXOPool utxoPool) {
+        this.utxoPool = utxoPool;
+    }
+
+    /**
+     * Creates a public ledger continuing from {@code checkpoint}, e.g. the one returned by
+     * {@link CheckpointStore#loadLatest()}. The restored pool is used without copying it.
+     */
+    public TxHandler(CheckpointStore.Checkpoint checkpoint) {
+        this.utxoPool = checkpoint.getUTXOPool();
+        this.epoch = checkpoint.getEpoch();
+    }
+
+    /**
+     * @return the current UTXO pool
+     */
+    public UTXOPool getUTXOPool() {
+        return utxoPool;
+    }
+
+    /**
+     * @return the number of epochs handled
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Writes a checkpoint of the current UTXO pool and epoch to {@code store} in the background.
+     * Handling of the next epochs may continue while the checkpoint is written.
+     * <p>
+     * A {@link TieredUTXOPool} is saved with {@link CheckpointStore#save(UTXOPool, long)}. Any other
+     * pool is not copied: it is written as it is while the next epochs change a
+     * {@link CheckpointView} on top of it, whose changes are merged into the pool once the
+     * checkpoint is written. This only waits if the previous checkpoint is still being written.
+     */
+    public Future<File> checkpoint(CheckpointStore store) {
+        if (utxoPool instanceof TieredUTXOPool) {
+            return store.save(utxoPool, epoch);
+        }
+        finishCheckpoint(true);
+        Future<File> checkpoint = store.saveUnchanged(utxoPool, epoch);
+        utxoPool = new CheckpointView(utxoPool);
+        pendingCheckpoint = checkpoint;
+        return checkpoint;
+    }
+
+    /**
+     * Merges the changes made since the pending checkpoint was started into the pool it writes, once
+     * it is written
+     *
+     * @param wait true to wait for the checkpoint, false to leave it pending if it is not written yet
+     */
+    private void finishCheckpoint(boolean wait) {
+        if (pendingCheckpoint == null || (!wait && !pendingCheckpoint.isDone())) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                pendingCheckpoint.get();
+                break;
+            } catch (InterruptedException e) {
+                //The pool cannot change before the write is over
+                interrupted = true;
+            } catch (ExecutionException e) {
+                //Reported to the caller through the future returned by checkpoint
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        pendingCheckpoint = null;
+        utxoPool = ((CheckpointView) utxoPool).merge();
+    }
+
+    /**
+     * Lets {@link #isValidTx(Transaction)} trust the signatures recorded in
+     * {@code verifiedSignatures} instead of checking them again; null disables this.
+     */
+    public void setVerifiedSignatures(VerifiedSignatures verifiedSignatures) {
+        this.verifiedSignatures = verifiedSignatures;
+    }
+
+    /**
+     * Makes every handleTxs call hash all proposed transactions with {@code hashService} first,
+     * in parallel, instead of hashing each accepted transaction while the pool is updated; null
+     * restores the latter. The proposed transactions must not change while they are handled.
+     */
+    public void setHashService(TxHashService hashService) {
+        this.hashService = hashService;
+    }
+
+    /**
+     * @return the service hashing each epoch up front, or null
+     */
+    TxHashService getHashService() {
+        return hashService;
+    }
+
     /**
      * @return true if:
      * (1) all outputs claimed by {@code tx} are in the current UTXO pool,
@@ -28,19 +187,33 @@ public class TxHandler {
      * values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
+        return isValidTx(utxoPool, tx, true);
+    }
+
+    /**
+     * Validate a transaction in the given utxoPool
+     *
+     * @param utxoPool
+     * @param tx
+     * @param checkValues false if Case-4 and Case-5 were already checked by the caller
+     * @return true or false
+     */
+    private boolean isValidTx(UTXOPool utxoPool, Transaction tx, boolean checkValues) {
         // Return false if transaction is null
         if (tx == null) {
             return false;
         }
 
         Set<Integer> checkUnique = new HashSet<Integer>();
+        SignData signData = null;
         double totalInValue = 0;
         for (int index = 0; index < tx.numInputs(); index++) {
             Transaction.Input input = tx.getInput(index);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex, false);
 
             //Check this utxo exist in pool : Case-1
-            if (!utxoPool.contains(utxo)) {
+            Transaction.Output userOutput = utxoPool.getTxOutput(utxo);
+            if (userOutput == null) {
                 return false;
             }
 
@@ -50,14 +223,20 @@ public class TxHandler {
             }
             checkUnique.add(utxo.hashCode());
 
-            Transaction.Output userOutput = utxoPool.getTxOutput(utxo);
             //Signature not match for a user : Case-2
-            if (!Crypto.verifySignature(userOutput.address, tx.getRawDataToSign(index), input.signature)) {
+            if (signData == null) {
+                signData = new SignData(tx);
+            }
+            if (!isValidSignature(signData, tx, index, userOutput.address)) {
                 return false;
             }
             totalInValue += userOutput.value;
         }
 
+        if (!checkValues) {
+            return true;
+        }
+
         double totalOutValue = 0;
         for (int index = 0; index < tx.numOutputs(); index++) {
             Transaction.Output output = tx.getOutput(index);
@@ -86,13 +265,64 @@ public class TxHandler {
         if (possibleTxs == null) {
             return null;
         }
+        return handleTxs(possibleTxs, true, false);
+    }
+
+    /**
+     * Like {@link #handleTxs(Transaction[])} for transactions whose hashes were just computed, e.g.
+     * by an earlier stage of an {@link EpochPipeline}, so they are not hashed again
+     */
+    Transaction[] handleHashedTxs(Transaction[] possibleTxs) {
+        //Check for input value and return
+        if (possibleTxs == null) {
+            return null;
+        }
+        return handleTxs(possibleTxs, true, true);
+    }
+
+    /**
+     * @param possibleTxs
+     * @param checkValues false if Case-4 and Case-5 were already checked for all of
+     *                    {@code possibleTxs}
+     * @param hashed      true if {@code possibleTxs} were already hashed
+     * @return mutually valid array of accepted transactions
+     */
+    private Transaction[] handleTxs(Transaction[] possibleTxs, boolean checkValues, boolean hashed) {
+        finishCheckpoint(false);
+        if (!hashed && hashService != null) {
+            hashEpoch(possibleTxs);
+            hashed = true;
+        }
+        List<Transaction> validTxs;
+        if (applyPool == null) {
+            validTxs = selectValidTxs(utxoPool, possibleTxs, checkValues, hashed);
+        } else {
+            validTxs = handleInWaves(possibleTxs, checkValues, hashed);
+        }
+
+        utxoPool.flush();
+        epoch++;
+        return validTxs.toArray(new Transaction[validTxs.size()]);
+    }
 
+    /**
+     * Accepts the valid transactions of {@code possibleTxs}, repeating until no more of them become
+     * valid, and applies each one to the given pool
+     *
+     * @param utxoPool
+     * @param possibleTxs
+     * @param checkValues
+     * @param hashed
+     * @return the accepted transactions, in the order they were applied
+     */
+    private List<Transaction> selectValidTxs(UTXOPool utxoPool, Transaction[] possibleTxs,
+                                             boolean checkValues, boolean hashed) {
         List<Transaction> validTxs = new ArrayList<Transaction>();
         List<Transaction> invalidTxs = new ArrayList<Transaction>();
         for (int index = 0; index < possibleTxs.length; index++) {
             Transaction tx = possibleTxs[index];
-            if (isValidTx(tx)) {
-                updateTransactionIntoThePool(tx);
+            if (isValidTx(utxoPool, tx, checkValues)) {
+                updateTransactionIntoThePool(utxoPool, tx, hashed);
                 validTxs.add(tx);
             } else {
                 invalidTxs.add(tx);
@@ -109,8 +339,8 @@ public class TxHandler {
             List<Transaction> localInValidTxs = new ArrayList<Transaction>();
             boolean isFoundValidTx = false;
             for (Transaction tx : invalidTxs) {
-                if (isValidTx(tx)) {
-                    updateTransactionIntoThePool(tx);
+                if (isValidTx(utxoPool, tx, checkValues)) {
+                    updateTransactionIntoThePool(utxoPool, tx, hashed);
                     validTxs.add(tx);
                     isFoundValidTx = true;
                 } else {
@@ -124,16 +354,267 @@ public class TxHandler {
 
             invalidTxs = localInValidTxs;
         }
+        return validTxs;
+    }
 
-        return validTxs.toArray(new Transaction[validTxs.size()]);
+    /**
+     * Handles an epoch with {@link #applyPool}, see {@link #TxHandler(UTXOPool, ForkJoinPool)}.
+     * A transaction goes into the wave after the last one touching any UTXO it spends or creates,
+     * so every UTXO sees its changes in the original order.
+     *
+     * @param possibleTxs
+     * @param checkValues
+     * @param hashed
+     * @return the accepted transactions, in the order the sequential handler accepts them
+     */
+    private List<Transaction> handleInWaves(final Transaction[] possibleTxs, final boolean checkValues,
+                                            final boolean hashed) {
+        //Everything that does not depend on the order: hashes, and checks against the pool plus
+        //every output created in the epoch
+        final EpochOutputs epochOutputs = new EpochOutputs(utxoPool);
+        invokeRange(possibleTxs.length, new IndexAction() {
+            public void run(int index) {
+                Transaction tx = possibleTxs[index];
+                if (tx == null) {
+                    return;
+                }
+                if (!hashed) {
+                    tx.finalize();
+                }
+                //Left unhashed by hashEpoch, and never accepted
+                if (tx.getHash() == null) {
+                    return;
+                }
+                for (int output = 0; output < tx.numOutputs(); output++) {
+                    epochOutputs.addUTXO(new UTXO(tx.getHash(), output, false), tx.getOutput(output));
+                }
+            }
+        });
+        final boolean[] checked = new boolean[possibleTxs.length];
+        invokeRange(possibleTxs.length, new IndexAction() {
+            public void run(int index) {
+                checked[index] = isValidTx(epochOutputs, possibleTxs[index], checkValues);
+            }
+        });
+
+        //The order dependent part: whether the spent UTXOs are still there
+        WaveBuilder waves = new WaveBuilder();
+        List<Transaction> invalidTxs = new ArrayList<Transaction>();
+        for (int index = 0; index < possibleTxs.length; index++) {
+            if (!checked[index]) {
+                continue;
+            }
+            Transaction tx = possibleTxs[index];
+            if (!waves.accept(tx)) {
+                invalidTxs.add(tx);
+            }
+        }
+
+        while (!invalidTxs.isEmpty()) {
+            List<Transaction> localInValidTxs = new ArrayList<Transaction>();
+            for (Transaction tx : invalidTxs) {
+                if (!waves.accept(tx)) {
+                    localInValidTxs.add(tx);
+                }
+            }
+
+            if (localInValidTxs.size() == invalidTxs.size()) {
+                break;
+            }
+            invalidTxs = localInValidTxs;
+        }
+
+        for (final List<Transaction> wave : waves.waves) {
+            invokeRange(wave.size(), new IndexAction() {
+                public void run(int index) {
+                    applyIntoThePool(utxoPool, wave.get(index));
+                }
+            });
+        }
+        return waves.validTxs;
+    }
+
+    /**
+     * Tracks the UTXOs spent and created by the transactions accepted so far in an epoch, without
+     * changing the pool, and assigns the accepted transactions to waves
+     */
+    private class WaveBuilder {
+        List<Transaction> validTxs = new ArrayList<Transaction>();
+        List<List<Transaction>> waves = new ArrayList<List<Transaction>>();
+        Set<UTXO> spent = new HashSet<UTXO>();
+        Set<UTXO> created = new HashSet<UTXO>();
+        Map<UTXO, Integer> lastWave = new HashMap<UTXO, Integer>();
+
+        /**
+         * Accepts {@code tx}, which passed every other check, if all UTXOs it spends are unspent
+         *
+         * @param tx
+         * @return true if accepted
+         */
+        boolean accept(Transaction tx) {
+            List<UTXO> touched = new ArrayList<UTXO>(tx.numInputs() + tx.numOutputs());
+            for (Transaction.Input input : tx.getInputs()) {
+                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex, false);
+                if (!created.contains(utxo) && (spent.contains(utxo) || !utxoPool.contains(utxo))) {
+                    return false;
+                }
+                touched.add(utxo);
+            }
+            for (int index = 0; index < tx.numOutputs(); index++) {
+                touched.add(new UTXO(tx.getHash(), index, false));
+            }
+
+            int wave = 0;
+            for (int index = 0; index < touched.size(); index++) {
+                UTXO utxo = touched.get(index);
+                if (index < tx.numInputs() && !created.remove(utxo)) {
+                    spent.add(utxo);
+                } else if (index >= tx.numInputs()) {
+                    created.add(utxo);
+                }
+                Integer last = lastWave.get(utxo);
+                if (last != null && last + 1 > wave) {
+                    wave = last + 1;
+                }
+            }
+            for (UTXO utxo : touched) {
+                lastWave.put(utxo, wave);
+            }
+            if (wave == waves.size()) {
+                waves.add(new ArrayList<Transaction>());
+            }
+            waves.get(wave).add(tx);
+            validTxs.add(tx);
+            return true;
+        }
+    }
+
+    /**
+     * Runs {@code action} for every index below {@code size} on {@link #applyPool}
+     */
+    private void invokeRange(int size, IndexAction action) {
+        applyPool.invoke(new RangeTask(action, 0, size));
+    }
+
+    private interface IndexAction {
+        void run(int index);
+    }
+
+    /**
+     * Runs an action for a range of indices, splitting it between threads
+     */
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        IndexAction action;
+        int from;
+        int to;
+
+        public RangeTask(IndexAction action, int from, int to) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= RANGE_THRESHOLD) {
+                for (int index = from; index < to; index++) {
+                    action.run(index);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(action, from, middle), new RangeTask(action, middle, to));
+        }
+    }
+
+    /**
+     * Handles an epoch given in columnar form, with the same accepted transactions as
+     * {@link #handleTxs(Transaction[])}. Case-4 and Case-5 only depend on the values of the
+     * outputs a transaction creates and claims, so they are checked once per batch on the packed
+     * values, and only the transactions passing them are unpacked and handled further.
+     * <p>
+     * Claimed outputs created in the same epoch are found by the hashes stored in the batch. If
+     * some transaction has no hash yet, only Case-4 is checked up front.
+     *
+     * @param batch
+     * @return mutually valid array of accepted transactions, unpacked from the batch
+     */
+    public Transaction[] handleTxs(EpochBatch batch) {
+        //Check for input value and return
+        if (batch == null) {
+            return null;
+        }
+
+        boolean[] selected = batch.getNonNegativeOutputs();
+        boolean hashed = batch.isHashed();
+        if (hashed) {
+            double[] inputSums = batch.getInputSums(utxoPool);
+            double[] outputSums = batch.getOutputSums();
+            for (int index = 0; index < selected.length; index++) {
+                //A NaN input sum claims an output which exists nowhere : Case-1
+                selected[index] &= !Double.isNaN(inputSums[index]) && !(inputSums[index] < outputSums[index]);
+            }
+        }
+
+        Transaction[] txs = batch.toTransactions(selected);
+        List<Transaction> possibleTxs = new ArrayList<Transaction>(txs.length);
+        for (int index = 0; index < txs.length; index++) {
+            if (selected[index]) {
+                possibleTxs.add(txs[index]);
+            }
+        }
+        return handleTxs(possibleTxs.toArray(new Transaction[possibleTxs.size()]), !hashed, false);
+    }
+
+    /**
+     * Hashes {@code possibleTxs} up front with the hash service, except for the ones which have a
+     * negative output value and so are never accepted (Case-4)
+     */
+    private void hashEpoch(Transaction[] possibleTxs) {
+        List<Transaction> txs = new ArrayList<Transaction>(possibleTxs.length);
+        for (Transaction tx : possibleTxs) {
+            if (tx != null && hasNonNegativeOutputs(tx)) {
+                txs.add(tx);
+            }
+        }
+        hashService.hashAll(txs.toArray(new Transaction[txs.size()]));
     }
 
-    private void updateTransactionIntoThePool(Transaction tx) {
-        tx.finalize();
+    private static boolean hasNonNegativeOutputs(Transaction tx) {
+        for (int index = 0; index < tx.numOutputs(); index++) {
+            if (tx.getOutput(index).value < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isValidSignature(SignData signData, Transaction tx, int index, PublicKey address) {
+        Transaction.Input input = tx.getInput(index);
+        if (verifiedSignatures != null
+                && verifiedSignatures.isVerified(input, address, signData.getDigest(index))) {
+            return true;
+        }
+        return signData.verify(index, address);
+    }
+
+    private void updateTransactionIntoThePool(UTXOPool utxoPool, Transaction tx, boolean hashed) {
+        if (!hashed) {
+            tx.finalize();
+        }
+        applyIntoThePool(utxoPool, tx);
+    }
+
+    /**
+     * Spends the inputs of the already hashed {@code tx} and adds its outputs to the given pool
+     */
+    private void applyIntoThePool(UTXOPool utxoPool, Transaction tx) {
         byte[] hash = tx.getHash();
 
         for (Transaction.Input input : tx.getInputs()) {
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex, false);
             utxoPool.removeUTXO(utxo);
         }
 
@@ -144,4 +625,119 @@ public class TxHandler {
         }
     }
 
+    /**
+     * Read-only view of a pool together with every output created by an epoch's transactions,
+     * filled from several threads before it is read
+     */
+    private static class EpochOutputs extends UTXOPool {
+        UTXOPool base;
+        Map<UTXO, Transaction.Output> created = new ConcurrentHashMap<UTXO, Transaction.Output>();
+
+        public EpochOutputs(UTXOPool base) {
+            this.base = base;
+        }
+
+        @Override
+        public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+            created.put(utxo, txOut);
+        }
+
+        @Override
+        public void removeUTXO(UTXO utxo) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Transaction.Output getTxOutput(UTXO ut) {
+            Transaction.Output output = created.get(ut);
+            if (output != null) {
+                return output;
+            }
+            return base.getTxOutput(ut);
+        }
+
+        @Override
+        public boolean contains(UTXO utxo) {
+            return getTxOutput(utxo) != null;
+        }
+
+        @Override
+        public ArrayList<UTXO> getAllUTXO() {
+            ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(base.getAllUTXO());
+            allUTXO.addAll(created.keySet());
+            return allUTXO;
+        }
+    }
+
+    /**
+     * Copy-on-write view of a pool being written as a checkpoint. The pool itself is only read; the
+     * changes made through the view are kept aside until {@link #merge()}. Like a
+     * {@link ConcurrentUTXOPool}, the view may be updated from several threads at once as long as
+     * no two threads work on the same UTXO.
+     */
+    private static class CheckpointView extends UTXOPool {
+        UTXOPool base;
+        Map<UTXO, Transaction.Output> added = new ConcurrentHashMap<UTXO, Transaction.Output>();
+        Set<UTXO> removed = ConcurrentHashMap.newKeySet();
+
+        public CheckpointView(UTXOPool base) {
+            this.base = base;
+        }
+
+        @Override
+        public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+            removed.remove(utxo);
+            added.put(utxo, txOut);
+        }
+
+        @Override
+        public void removeUTXO(UTXO utxo) {
+            added.remove(utxo);
+            if (base.contains(utxo)) {
+                removed.add(utxo);
+            }
+        }
+
+        @Override
+        public Transaction.Output getTxOutput(UTXO ut) {
+            Transaction.Output output = added.get(ut);
+            if (output != null || removed.contains(ut)) {
+                return output;
+            }
+            return base.getTxOutput(ut);
+        }
+
+        @Override
+        public boolean contains(UTXO utxo) {
+            return getTxOutput(utxo) != null;
+        }
+
+        @Override
+        public ArrayList<UTXO> getAllUTXO() {
+            ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
+            for (UTXO ut : base.getAllUTXO()) {
+                if (!removed.contains(ut) && !added.containsKey(ut)) {
+                    allUTXO.add(ut);
+                }
+            }
+            allUTXO.addAll(added.keySet());
+            return allUTXO;
+        }
+
+        /**
+         * Applies the changes made through the view to the pool, which must not be read by anyone
+         * else anymore
+         *
+         * @return the updated pool
+         */
+        UTXOPool merge() {
+            for (UTXO ut : removed) {
+                base.removeUTXO(ut);
+            }
+            for (Map.Entry<UTXO, Transaction.Output> entry : added.entrySet()) {
+                base.addUTXO(entry.getKey(), entry.getValue());
+            }
+            return base;
+        }
+    }
 }
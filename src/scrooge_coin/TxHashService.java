@@ -0,0 +1,151 @@
+package scrooge_coin;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes transaction ids. A service pairs a digest {@link Engine} with the fork-join pool used by
+ * its batch methods, which hash the raw encodings of many transactions at once on several threads.
+ * <p>
+ * A transaction's id depends only on its own contents, not on the UTXO pool, so the handlers can
+ * hash a whole epoch up front with {@link #hashAll(Transaction[])} instead of one transaction at a
+ * time while they update the pool, see {@link TxHandler#setHashService(TxHashService)}.
+ */
+public class TxHashService {
+
+    /**
+     * Below this number of transactions a batch is hashed by a single task
+     */
+    private static final int BATCH_THRESHOLD = 32;
+
+    /**
+     * Digest function used for transaction ids. Implementations must be safe to call from several
+     * threads at once.
+     */
+    public interface Engine {
+        byte[] digest(byte[] data);
+    }
+
+    /**
+     * SHA-256, the digest of {@link Transaction#finalize()}, with one reusable MessageDigest per
+     * thread
+     */
+    public static final Engine SHA256 = new Engine() {
+        private final ThreadLocal<MessageDigest> md = new ThreadLocal<MessageDigest>() {
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException x) {
+                    throw new IllegalStateException(x);
+                }
+            }
+        };
+
+        public byte[] digest(byte[] data) {
+            //digest() also resets it for the next use
+            return md.get().digest(data);
+        }
+    };
+
+    private final Engine engine;
+
+    private final ForkJoinPool forkJoinPool;
+
+    /**
+     * Creates a SHA-256 service running its batches on the common fork-join pool
+     */
+    public TxHashService() {
+        this(SHA256, ForkJoinPool.commonPool());
+    }
+
+    public TxHashService(Engine engine, ForkJoinPool forkJoinPool) {
+        this.engine = engine;
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * Sets the id of {@code tx} to the digest of its raw encoding
+     *
+     * @param tx
+     * @return the id
+     */
+    public byte[] hash(Transaction tx) {
+        byte[] hash = engine.digest(tx.getRawTx());
+        tx.setHash(hash);
+        return hash;
+    }
+
+    /**
+     * Sets the id of every transaction of {@code txs}, in parallel. Null entries are skipped.
+     *
+     * @param txs
+     */
+    public void hashAll(final Transaction[] txs) {
+        forkJoinPool.invoke(new BatchTask(txs.length) {
+            void compute(int index) {
+                if (txs[index] != null) {
+                    hash(txs[index]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Digests every element of {@code data}, in parallel
+     *
+     * @param data
+     * @return the digest of each element, in the same order
+     */
+    public byte[][] digestAll(final byte[][] data) {
+        final byte[][] digests = new byte[data.length][];
+        forkJoinPool.invoke(new BatchTask(data.length) {
+            void compute(int index) {
+                digests[index] = engine.digest(data[index]);
+            }
+        });
+        return digests;
+    }
+
+    /**
+     * Runs {@link #compute(int)} for a range of indices, splitting it between threads
+     */
+    private abstract static class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        int from;
+        int to;
+
+        BatchTask(int to) {
+            this.to = to;
+        }
+
+        abstract void compute(int index);
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_THRESHOLD) {
+                for (int index = from; index < to; index++) {
+                    compute(index);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            BatchTask left = split(from, middle);
+            BatchTask right = split(middle, to);
+            invokeAll(left, right);
+        }
+
+        private BatchTask split(int from, int to) {
+            final BatchTask parent = this;
+            BatchTask task = new BatchTask(to) {
+                void compute(int index) {
+                    parent.compute(index);
+                }
+            };
+            task.from = from;
+            return task;
+        }
+    }
+}
@@ -23,6 +23,16 @@ public class UTXO implements Comparable<UTXO> {
         this.index = index;
     }
 
+    /**
+     * Creates a new UTXO which uses {@code txHash} itself when {@code copy} is false. Such a UTXO
+     * is meant as a short-lived lookup key and must not be added to a pool, since it changes with
+     * the array.
+     */
+    UTXO(byte[] txHash, int index, boolean copy) {
+        this.txHash = copy ? Arrays.copyOf(txHash, txHash.length) : txHash;
+        this.index = index;
+    }
+
     /**
      * @return the transaction hash of this UTXO
      */
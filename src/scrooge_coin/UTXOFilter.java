@@ -0,0 +1,115 @@
+package scrooge_coin;
+
+/**
+ * Blocked Bloom filter over UTXOs. Each UTXO maps to one 512 bit block, the size of a cache line,
+ * in which it sets {@code K} bits, so a lookup reads a single cache line. {@link #mightContain(UTXO)}
+ * never returns false for an added UTXO; it returns true for a missing one with a probability below
+ * 1% while no more than {@link #getCapacity()} UTXOs were added.
+ * <p>
+ * Bloom filters cannot delete; {@link UTXOPool} rebuilds its filter once too many of the added
+ * UTXOs were removed.
+ */
+public class UTXOFilter {
+
+    private static final int BITS_PER_ENTRY = 12;
+    private static final int K = 7;
+    private static final int LONGS_PER_BLOCK = 8;
+
+    private final long[] bits;
+
+    /**
+     * Number of blocks minus one; the number of blocks is a power of two
+     */
+    private final int blockMask;
+
+    private final int capacity;
+
+    private int added;
+
+    /**
+     * Creates a new empty filter sized for {@code capacity} UTXOs
+     */
+    public UTXOFilter(int capacity) {
+        int blocks = Integer.highestOneBit(Math.max(1, capacity * BITS_PER_ENTRY / 512));
+        if (blocks * 512L < (long) capacity * BITS_PER_ENTRY) {
+            blocks <<= 1;
+        }
+        this.bits = new long[blocks * LONGS_PER_BLOCK];
+        this.blockMask = blocks - 1;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates a new filter that is a copy of {@code filter}
+     */
+    public UTXOFilter(UTXOFilter filter) {
+        this.bits = filter.bits.clone();
+        this.blockMask = filter.blockMask;
+        this.capacity = filter.capacity;
+        this.added = filter.added;
+    }
+
+    /**
+     * Adds {@code utxo} to the filter
+     */
+    public void add(UTXO utxo) {
+        long h = hash(utxo);
+        int block = (int) (h >>> 32) & blockMask;
+        int base = block * LONGS_PER_BLOCK;
+        long g = h * 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < K; i++) {
+            int bit = (int) (g >>> (9 * i)) & 511;
+            bits[base + (bit >>> 6)] |= 1L << bit;
+        }
+        added++;
+    }
+
+    /**
+     * @return false if {@code utxo} was definitely never added, true if it may have been
+     */
+    public boolean mightContain(UTXO utxo) {
+        long h = hash(utxo);
+        int block = (int) (h >>> 32) & blockMask;
+        int base = block * LONGS_PER_BLOCK;
+        long g = h * 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < K; i++) {
+            int bit = (int) (g >>> (9 * i)) & 511;
+            if ((bits[base + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of UTXOs the filter was sized for
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of {@link #add(UTXO)} calls
+     */
+    public int getAdded() {
+        return added;
+    }
+
+    /**
+     * 64 bit FNV-1a of the transaction hash and index, followed by the MurmurHash3 finalizer
+     */
+    private static long hash(UTXO utxo) {
+        long h = 0xcbf29ce484222325L ^ utxo.getIndex();
+        byte[] txHash = utxo.getTxHash();
+        for (int i = 0; i < txHash.length; i++) {
+            h ^= txHash[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -11,6 +11,16 @@ public class UTXOPool {
      */
     private HashMap<UTXO, Transaction.Output> H;
 
+    /**
+     * Optional prefilter of the keys of {@code H}, or null. It may still contain removed UTXOs.
+     */
+    private UTXOFilter filter;
+
+    /**
+     * Number of UTXOs removed since {@code filter} was built
+     */
+    private int filterRemovals;
+
     /**
      * Creates a new empty UTXOPool
      */
@@ -19,10 +29,46 @@ public class UTXOPool {
     }
 
     /**
-     * Creates a new UTXOPool that is a copy of {@code uPool}
+     * Creates a new UTXOPool that is a copy of {@code uPool}. A pool whose UTXOs are not all in
+     * memory, like a {@link TieredUTXOPool}, is copied entry by entry.
      */
     public UTXOPool(UTXOPool uPool) {
+        if (uPool.getClass() != UTXOPool.class) {
+            H = new HashMap<UTXO, Transaction.Output>();
+            for (UTXO ut : uPool.getAllUTXO()) {
+                H.put(ut, uPool.getTxOutput(ut));
+            }
+            return;
+        }
         H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        if (uPool.filter != null) {
+            filter = new UTXOFilter(uPool.filter);
+            filterRemovals = uPool.filterRemovals;
+        }
+    }
+
+    /**
+     * Keeps a {@link UTXOFilter} of the pool, so that {@link #contains(UTXO)} and
+     * {@link #getTxOutput(UTXO)} reject most UTXOs which are not in the pool without probing the
+     * map. The filter is copied along with the pool.
+     */
+    public void enableFilter() {
+        rebuildFilter();
+    }
+
+    /**
+     * @return true if the pool keeps a filter
+     */
+    public boolean isFilterEnabled() {
+        return filter != null;
+    }
+
+    private void rebuildFilter() {
+        filter = new UTXOFilter(Math.max(1024, 2 * H.size()));
+        for (UTXO ut : H.keySet()) {
+            filter.add(ut);
+        }
+        filterRemovals = 0;
     }
 
     /**
@@ -30,13 +76,25 @@ public class UTXOPool {
      */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
         H.put(utxo, txOut);
+        if (filter != null) {
+            filter.add(utxo);
+            //Too full to stay accurate
+            if (filter.getAdded() > filter.getCapacity()) {
+                rebuildFilter();
+            }
+        }
     }
 
     /**
      * Removes the UTXO {@code utxo} from the pool
      */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        if (H.remove(utxo) != null && filter != null) {
+            //More removed than remaining UTXOs in the filter
+            if (++filterRemovals > H.size()) {
+                rebuildFilter();
+            }
+        }
     }
 
     /**
@@ -44,6 +102,9 @@ public class UTXOPool {
      * not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
+        if (filter != null && !filter.mightContain(ut)) {
+            return null;
+        }
         return H.get(ut);
     }
 
@@ -51,9 +112,19 @@ public class UTXOPool {
      * @return true if UTXO {@code utxo} is in the pool and false otherwise
      */
     public boolean contains(UTXO utxo) {
+        if (filter != null && !filter.mightContain(utxo)) {
+            return false;
+        }
         return H.containsKey(utxo);
     }
 
+    /**
+     * Writes changes to the storage backing the pool, if any. An in-memory pool has nothing to
+     * write.
+     */
+    public void flush() {
+    }
+
     /**
      * Returns an {@code ArrayList} of all UTXOs in the pool
      */
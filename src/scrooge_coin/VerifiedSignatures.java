@@ -0,0 +1,71 @@
+package scrooge_coin;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe record of input signatures which were already checked against a given address, so
+ * that a later validation of the same input against the same address can skip
+ * {@link Crypto#verifySignature(PublicKey, byte[], byte[])}.
+ * <p>
+ * Input objects may be shared between copies of a transaction or reused by
+ * {@link Transaction#reset()}, so a record also keeps the digest of the signed data (see
+ * {@link SignData#getDigest(int)}) and the signature, and only matches if both are unchanged.
+ */
+public class VerifiedSignatures {
+
+    /**
+     * Each verified input, compared by identity, mapped to what its signature was verified for
+     */
+    private ConcurrentHashMap<Transaction.Input, Verified> H;
+
+    /**
+     * Creates a new empty VerifiedSignatures
+     */
+    public VerifiedSignatures() {
+        H = new ConcurrentHashMap<Transaction.Input, Verified>();
+    }
+
+    /**
+     * Records that the signature of {@code input} is valid under {@code address} for the signed
+     * data with the given {@code digest}
+     */
+    public void record(Transaction.Input input, PublicKey address, byte[] digest) {
+        H.put(input, new Verified(address, digest, input.signature));
+    }
+
+    /**
+     * @return true if the current signature of {@code input} was recorded as valid under
+     * {@code address} for the signed data with the given {@code digest}
+     */
+    public boolean isVerified(Transaction.Input input, PublicKey address, byte[] digest) {
+        Verified verified = H.get(input);
+        return verified != null && verified.address.equals(address)
+                && Arrays.equals(verified.digest, digest) && Arrays.equals(verified.signature, input.signature);
+    }
+
+    /**
+     * Forgets the inputs of {@code tx}
+     */
+    public void forget(Transaction tx) {
+        if (tx == null) {
+            return;
+        }
+        for (Transaction.Input input : tx.getInputs()) {
+            H.remove(input);
+        }
+    }
+
+    private static class Verified {
+        final PublicKey address;
+        final byte[] digest;
+        final byte[] signature;
+
+        Verified(PublicKey address, byte[] digest, byte[] signature) {
+            this.address = address;
+            this.digest = digest;
+            this.signature = signature == null ? null : signature.clone();
+        }
+    }
+}